@@ -165,6 +165,23 @@ public class AdminServlet extends HttpServlet {
         }
     }
 
+    public void setPresenceDebounceSeconds(
+            final HttpServletRequest request,
+            final HttpServletResponse response,
+            String[] pathComponents) {
+        try {
+            Dao dao = new Dao();
+            int seconds = Integer.parseInt(checkAndTrim(request, "seconds"));
+            dao.setPresenceDebounceSeconds(seconds);
+            LanternControllerUtils.populateOKResponse(
+                    response,
+                    "Set presence debounce window to: " + seconds + "s");
+        } catch (IOException e) {
+            LanternControllerUtils.populateErrorResponse(
+                    response, e.getMessage());
+        }
+    }
+
     public void promoteFallbackProxyUser(
             final HttpServletRequest request,
             final HttpServletResponse response,
@@ -207,6 +224,19 @@ public class AdminServlet extends HttpServlet {
 
     }
 
+    public void setPresencesAsync(final HttpServletRequest request,
+            final HttpServletResponse response, String[] pathComponents) {
+
+        Dao dao = new Dao();
+
+        boolean async = "true".equals(request.getParameter("async"));
+
+        dao.setPresencesAsync(async);
+
+        LanternControllerUtils.populateOKResponse(response, "Presences async: " + async);
+
+    }
+
     public void sendUpdateEmail(HttpServletRequest request,
                                 HttpServletResponse response,
                                 String[] pathComponents) {
@@ -0,0 +1,47 @@
+package org.lantern;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import org.lantern.data.CounterAccumulator;
+
+import com.google.appengine.api.LifecycleManager;
+import com.google.appengine.api.LifecycleManager.ShutdownHook;
+
+/**
+ * Sends the counter deltas accumulated in this instance to memcache every so
+ * often, at the end of requests, and once more when the instance shuts down.
+ */
+public class CounterFlushFilter implements Filter {
+
+    @Override
+    public void init(FilterConfig filterConfig) {
+        LifecycleManager.getInstance().setShutdownHook(new ShutdownHook() {
+            @Override
+            public void shutdown() {
+                CounterAccumulator.flush();
+            }
+        });
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response,
+            FilterChain chain) throws IOException, ServletException {
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            CounterAccumulator.flushIfDue();
+        }
+    }
+
+    @Override
+    public void destroy() {
+        CounterAccumulator.flush();
+    }
+}
@@ -4,9 +4,11 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 
 import javax.servlet.http.HttpServletResponse;
 import javax.xml.XMLConstants;
@@ -14,11 +16,16 @@ import javax.xml.namespace.NamespaceContext;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathExpression;
 import javax.xml.xpath.XPathExpressionException;
 import javax.xml.xpath.XPathFactory;
 
+import org.apache.commons.lang3.StringUtils;
 import org.w3c.dom.Document;
 import org.xml.sax.EntityResolver;
 import org.xml.sax.InputSource;
@@ -40,12 +47,55 @@ public class LanternControllerUtils {
             throw new RuntimeException("Only local entities allowed");
         }
     }
+    private static final EntityResolver entityResolver =
+        new MyEntityResolver();
+
     static {
         //prevent xml entity expansion attacks
         System.setProperty("entityExpansionLimit", "100");
     }
 
-    private static HashMap<String, XPathExpression> xPathCache = new HashMap<String, XPathExpression>();
+    private static final String CLIENT_NS = "jabber:client";
+
+    private static final String PROPERTIES_NS =
+        "http://www.jivesoftware.com/xmlns/xmpp/properties";
+
+    // None of the XML factories, builders or compiled expressions below are
+    // guaranteed to be thread-safe, and our instances are threadsafe, so we
+    // keep one of each per thread.  That way we pay for factory lookup and
+    // expression compilation once per thread rather than once per stanza.
+
+    private static final ThreadLocal<XMLInputFactory> inputFactory =
+        new ThreadLocal<XMLInputFactory>() {
+            @Override
+            protected XMLInputFactory initialValue() {
+                return newInputFactory();
+            }
+        };
+
+    private static final ThreadLocal<DocumentBuilder> documentBuilder =
+        new ThreadLocal<DocumentBuilder>() {
+            @Override
+            protected DocumentBuilder initialValue() {
+                return newDocumentBuilder();
+            }
+        };
+
+    private static final ThreadLocal<XPath> xPath =
+        new ThreadLocal<XPath>() {
+            @Override
+            protected XPath initialValue() {
+                return newXPath();
+            }
+        };
+
+    private static final ThreadLocal<Map<String, XPathExpression>> xPathCache =
+        new ThreadLocal<Map<String, XPathExpression>>() {
+            @Override
+            protected Map<String, XPathExpression> initialValue() {
+                return new HashMap<String, XPathExpression>();
+            }
+        };
 
     /**
      * Returns whether or not the given ID is a lantern ID.
@@ -59,29 +109,155 @@ public class LanternControllerUtils {
     }
 
 
-    public static Document buildDoc(final Presence presence) {
+    private static String checkedStanza(final Presence presence) {
         String stanza = presence.getStanza();
         if (stanza.length() > 10000) {
             //prevent xml generic entity expansion
             throw new RuntimeException("Unexpectedly long stanza");
         }
-        final DocumentBuilderFactory domFactory = DocumentBuilderFactory.newInstance();
-        domFactory.setNamespaceAware(true);
-        DocumentBuilder builder;
+        return stanza;
+    }
+
+    /**
+     * Extract all the properties of a presence in a single pass.
+     *
+     * This streams through the stanza instead of building a DOM and
+     * evaluating an XPath expression per property.  If a property appears
+     * more than once, the first non-empty value wins, as it would with
+     * getProperty(Document, String).
+     *
+     * @return a map from property names to their values.
+     */
+    public static Map<String, String> getProperties(final Presence presence) {
+        return getProperties(checkedStanza(presence));
+    }
+
+    static Map<String, String> getProperties(final String stanza) {
+        final Map<String, String> properties = new HashMap<String, String>();
+        XMLStreamReader reader = null;
+        try {
+            reader = inputFactory.get().createXMLStreamReader(
+                    new StringReader(stanza));
+            int depth = 0;
+            boolean inPresence = false;
+            boolean inProperties = false;
+            boolean inProperty = false;
+            String name = null;
+            String value = null;
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                case XMLStreamConstants.DTD:
+                    //prevent xml entity expansion attacks
+                    throw new RuntimeException("No DTDs allowed");
+                case XMLStreamConstants.START_ELEMENT:
+                    depth += 1;
+                    final String ns = reader.getNamespaceURI();
+                    final String local = reader.getLocalName();
+                    if (depth == 1) {
+                        inPresence = CLIENT_NS.equals(ns)
+                                     && "presence".equals(local);
+                    } else if (depth == 2 && inPresence) {
+                        inProperties = PROPERTIES_NS.equals(ns)
+                                       && "properties".equals(local);
+                    } else if (depth == 3 && inProperties) {
+                        inProperty = PROPERTIES_NS.equals(ns)
+                                     && "property".equals(local);
+                        name = null;
+                        value = null;
+                    } else if (depth == 4 && inProperty
+                               && PROPERTIES_NS.equals(ns)) {
+                        if ("name".equals(local) && name == null) {
+                            name = reader.getElementText();
+                            depth -= 1;
+                        } else if ("value".equals(local) && value == null) {
+                            value = reader.getElementText();
+                            depth -= 1;
+                        }
+                    }
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    if (depth == 3 && inProperty) {
+                        if (name != null && StringUtils.isNotEmpty(value)
+                            && !properties.containsKey(name)) {
+                            properties.put(name, value);
+                        }
+                        inProperty = false;
+                    } else if (depth == 2) {
+                        inProperties = false;
+                    }
+                    depth -= 1;
+                    break;
+                default:
+                    break;
+                }
+            }
+            return properties;
+        } catch (XMLStreamException e) {
+            throw new RuntimeException(e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException e) {
+                    // Nothing to release; we own the underlying reader.
+                }
+            }
+        }
+    }
+
+    private static XMLInputFactory newInputFactory() {
+        final XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        factory.setProperty(XMLInputFactory.IS_VALIDATING, false);
+        //prevent xml entity expansion and remote entity attacks
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(
+                XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+
+    /**
+     * @return the value of the given property, or the empty string if it is
+     * not set.
+     */
+    public static String getProperty(final Map<String, String> properties,
+        final String key) {
+        final String value = properties.get(key);
+        return value == null ? "" : value;
+    }
+
+    public static Document buildDoc(final Presence presence) {
+        return buildDoc(checkedStanza(presence));
+    }
+
+    static Document buildDoc(final String stanza) {
+        final DocumentBuilder builder = documentBuilder.get();
         try {
-            domFactory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
-            domFactory.setValidating(false);
-            builder = domFactory.newDocumentBuilder();
-            builder.setEntityResolver(new MyEntityResolver());
             byte[] bytes = stanza.getBytes();
             InputStream is = new ByteArrayInputStream(bytes);
             return builder.parse(is);
-        } catch (ParserConfigurationException e) {
-            throw new RuntimeException(e);
         } catch (SAXException e) {
             throw new RuntimeException(e);
         } catch (IOException e) {
             throw new RuntimeException(e);
+        } finally {
+            builder.reset();
+            // reset() forgets about our entity resolver.
+            builder.setEntityResolver(entityResolver);
+        }
+    }
+
+    private static DocumentBuilder newDocumentBuilder() {
+        final DocumentBuilderFactory domFactory = DocumentBuilderFactory.newInstance();
+        domFactory.setNamespaceAware(true);
+        try {
+            domFactory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+            domFactory.setValidating(false);
+            DocumentBuilder builder = domFactory.newDocumentBuilder();
+            builder.setEntityResolver(entityResolver);
+            return builder;
+        } catch (ParserConfigurationException e) {
+            throw new RuntimeException(e);
         }
     }
 
@@ -98,11 +274,21 @@ public class LanternControllerUtils {
     private static XPathExpression getXPathExpression(final String key)
             throws XPathExpressionException {
 
-        XPathExpression expression = xPathCache.get(key);
+        final Map<String, XPathExpression> cache = xPathCache.get();
+        XPathExpression expression = cache.get(key);
         if (expression != null) {
             return expression;
         }
 
+        String expressionStr = "/jabber:client:presence/ns1:properties/ns1:property[ns1:name='"
+                + key + "']/ns1:value/text()";
+        XPathExpression compiled = xPath.get().compile(expressionStr);
+
+        cache.put(key, compiled);
+        return compiled;
+    }
+
+    private static XPath newXPath() {
         XPath xpath = XPathFactory.newInstance().newXPath();
 
         NamespaceContext ctx = new NamespaceContext() {
@@ -134,12 +320,7 @@ public class LanternControllerUtils {
 
         };
         xpath.setNamespaceContext(ctx);
-        String expressionStr = "/jabber:client:presence/ns1:properties/ns1:property[ns1:name='"
-                + key + "']/ns1:value/text()";
-        XPathExpression compiled = xpath.compile(expressionStr);
-
-        xPathCache.put(key, compiled);
-        return compiled;
+        return xpath;
     }
 
     public static String userId(final Message message) {
@@ -0,0 +1,111 @@
+package org.lantern;
+
+import java.io.Serializable;
+
+import org.lantern.data.AvailablePresence;
+
+/**
+ * Everything we need to process a presence after we have replied to it.
+ */
+public class PendingPresence implements Serializable {
+    private static final long serialVersionUID = -2931562270468851217L;
+
+    private String userId;
+
+    /**
+     * The full JID, to which friend sync responses go.
+     */
+    private String fromJid;
+
+    private String resource;
+
+    /**
+     * Orders the presences of an instance; see PresenceQueue.
+     */
+    private long sequence;
+
+    private boolean available;
+
+    private String language;
+
+    private String friendsJson;
+
+    private String friendJson;
+
+    /**
+     * Null if this presence is unavailable or we can't track its stats.
+     */
+    private AvailablePresence clientInfo;
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public void setUserId(String userId) {
+        this.userId = userId;
+    }
+
+    public String getFromJid() {
+        return fromJid;
+    }
+
+    public void setFromJid(String fromJid) {
+        this.fromJid = fromJid;
+    }
+
+    public String getResource() {
+        return resource;
+    }
+
+    public void setResource(String resource) {
+        this.resource = resource;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    public boolean isAvailable() {
+        return available;
+    }
+
+    public void setAvailable(boolean available) {
+        this.available = available;
+    }
+
+    public String getLanguage() {
+        return language;
+    }
+
+    public void setLanguage(String language) {
+        this.language = language;
+    }
+
+    public String getFriendsJson() {
+        return friendsJson;
+    }
+
+    public void setFriendsJson(String friendsJson) {
+        this.friendsJson = friendsJson;
+    }
+
+    public String getFriendJson() {
+        return friendJson;
+    }
+
+    public void setFriendJson(String friendJson) {
+        this.friendJson = friendJson;
+    }
+
+    public AvailablePresence getClientInfo() {
+        return clientInfo;
+    }
+
+    public void setClientInfo(AvailablePresence clientInfo) {
+        this.clientInfo = clientInfo;
+    }
+}
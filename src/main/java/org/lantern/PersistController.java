@@ -1,27 +1,38 @@
 package org.lantern;
 
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.lantern.data.CounterHistoryManager;
 import org.lantern.data.Dao;
 import org.lantern.data.DatastoreCounter;
+import org.lantern.data.ShardCountSample;
 import org.lantern.data.ShardedCounterManager;
 
-import com.google.appengine.api.memcache.Expiration;
-import com.google.appengine.api.memcache.MemcacheService;
-import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.ThreadManager;
 
 @SuppressWarnings("serial")
 public class PersistController extends HttpServlet {
     private static final transient Logger log = Logger
             .getLogger(PersistController.class.getName());
 
+    // How many counter groups we persist at once.
+    private static final int PERSIST_THREADS = 8;
+
     @Override
     public void doGet(final HttpServletRequest request,
             final HttpServletResponse response) {
@@ -29,7 +40,57 @@ public class PersistController extends HttpServlet {
         // If Dao needs to initialize the counters, let that happen before our
         // own ShardedCounterManager fetches them.
         new Dao();
-        MemcacheService cache = MemcacheServiceFactory.getMemcacheService();
+
+        final long start = System.currentTimeMillis();
+
+        // Each group is persisted in a transaction of its own, so we can
+        // persist them all at once.
+        final ExecutorService executor = Executors.newFixedThreadPool(
+                PERSIST_THREADS, ThreadManager.currentRequestThreadFactory());
+        final List<Future<ShardCountSample>> futures =
+            new ArrayList<Future<ShardCountSample>>();
+        for (final String partition : ShardedCounterManager.PARTITIONS) {
+            futures.add(executor.submit(new Callable<ShardCountSample>() {
+                @Override
+                public ShardCountSample call() {
+                    return persist(partition);
+                }
+            }));
+        }
+        final ShardCountSample shards = new ShardCountSample();
+        shards.setTime(new Date().getTime() / 1000);
+        try {
+            for (Future<ShardCountSample> future : futures) {
+                try {
+                    shards.add(future.get());
+                } catch (final ExecutionException e) {
+                    log.log(Level.SEVERE, "Could not persist counters",
+                            e.getCause());
+                }
+            }
+        } catch (final InterruptedException e) {
+            throw new RuntimeException("Interrupted while persisting", e);
+        } finally {
+            executor.shutdown();
+        }
+        shards.setMillis(System.currentTimeMillis() - start);
+        log.info("Persisted " + shards.getCounters() + " counters in "
+                 + shards.getMillis() + "ms; they have " + shards.getShards()
+                 + " shards (" + shards.getRetiredShards() + " retired); "
+                 + shards.getGrown() + " grew and " + shards.getShrunk()
+                 + " shrank.");
+        new ShardedCounterManager().recordShardCounts(shards);
+
+        final Dao dao = new Dao();
+
+        //prewarm cache for stats page
+        StatsSnapshot.publish(dao.getStatsData(), dao.getStatsVersion());
+
+        LanternControllerUtils.populateOKResponse(response, "OK");
+    }
+
+    private ShardCountSample persist(final String partition) {
+        final ShardCountSample shards = new ShardCountSample();
 
         // get cached counters
         ShardedCounterManager manager = new ShardedCounterManager();
@@ -38,11 +99,16 @@ public class PersistController extends HttpServlet {
         // Any counters that are added (via
         // ShardedCounterManager.initCounters) concurrently after this point
         // will be handled in the next persistence cycle.
-        Map<String, DatastoreCounter> counters = manager.getAllCounters();
-        Map<String, Long> cacheUpdates = new HashMap<String, Long>();
+        Map<String, DatastoreCounter> counters =
+            manager.getCounters(partition);
+        if (counters.isEmpty()) {
+            return shards;
+        }
         long now = new Date().getTime() / 1000;
-        int timeSinceLastPersist = (int) (now - manager.getLastUpdated());
-        log.info("Time since last cycle  " + timeSinceLastPersist);
+        int timeSinceLastPersist =
+            (int) (now - manager.getLastUpdated(partition));
+        log.info("Time since last cycle of " + partition + ": "
+                 + timeSinceLastPersist);
         if (timeSinceLastPersist < ShardedCounterManager.PERSIST_TIMEOUT) {
             //assume at least one cycle has passed to avoid
             //weirdness
@@ -50,22 +116,27 @@ public class PersistController extends HttpServlet {
                     + ShardedCounterManager.PERSIST_TIMEOUT);
             timeSinceLastPersist = ShardedCounterManager.PERSIST_TIMEOUT;
         }
-
         // Collect operations once, out of transactional context.  Any updates
-        // to a given counter after we call getNewCountDestructive for it will
-        // be handled in the next persistence cycle.
+        // to a given counter after we drain it will be handled in the next
+        // persistence cycle.
+        final long drainStart = System.currentTimeMillis();
+        final Map<String, ShardedCounterManager.DrainedCounter> drained =
+            manager.drainCounters(counters.values());
+        final long drainMillis = System.currentTimeMillis() - drainStart;
         Map<String, Long> toIncrement = new HashMap<String, Long>();
-        Map<String, Long> toReplace = new HashMap<String, Long>();
-        Map<String, Integer> toAddShards = new HashMap<String, Integer>();
+        Map<String, Long> toRecord = new HashMap<String, Long>();
+        Map<String, Integer> toResizeShards = new HashMap<String, Integer>();
+        List<String> retiredDrained = new ArrayList<String>();
         for (DatastoreCounter counter : counters.values()) {
             // get count of new items since last persist
             String counterName = counter.getCounterName();
-            long count = manager.getNewCountDestructive(counterName);
+            final ShardedCounterManager.DrainedCounter d =
+                drained.get(counterName);
+            final long count = d == null ? 0L : d.getCount();
             if (counter.isTimed()) {
-                // timed counters just get the current count
-                toReplace.put(counterName,
-                              (count * ShardedCounterManager.PERSIST_TIMEOUT)
-                              / timeSinceLastPersist);
+                // timed counters keep what they got in each cycle, even if
+                // it's nothing
+                toRecord.put(counterName, count);
             } else {
                 if (count != 0) {
                     log.info("Counter '" + counterName + "': "
@@ -74,31 +145,59 @@ public class PersistController extends HttpServlet {
                     toIncrement.put(counterName, count);
                 }
             }
-            // check the update counter to see if we need new shards
-            Long updates = (Long) cache.get("updates" + counterName);
-            if (updates != null) {
-                cacheUpdates.put("updates" + counterName, 0L);
-                final int currentShards = counter.getShardCount();
-                final int maxUpdatesPerShard = ShardedCounterManager.MAX_UPDATES_PER_SHARD_PER_SECOND
-                        * timeSinceLastPersist;
-                if (updates > currentShards * maxUpdatesPerShard) {
-                    log.info("adding shard for counter " + counterName);
-                    int notHandledByCurrentShards = (int) (updates
-                            - (currentShards * maxUpdatesPerShard));
-                    toAddShards.put(counterName,
-                                    (int) Math.ceil(notHandledByCurrentShards
-                                          / (float)maxUpdatesPerShard));
-                }
+            // check the update counter to see if we need more or fewer
+            // shards
+            final long updates = d == null ? 0L : d.getUpdates();
+            final int currentShards = counter.getShardCount();
+            final int targetShards = ShardedCounterManager.targetShardCount(
+                    currentShards, updates, timeSinceLastPersist);
+            if (targetShards > currentShards) {
+                log.info("adding " + (targetShards - currentShards)
+                         + " shards for counter " + counterName);
+                toResizeShards.put(counterName, targetShards);
+                shards.setGrown(shards.getGrown() + 1);
+            } else if (targetShards < currentShards) {
+                log.info("removing " + (currentShards - targetShards)
+                         + " shards for counter " + counterName);
+                toResizeShards.put(counterName, targetShards);
+                shards.setShrunk(shards.getShrunk() + 1);
+                shards.setRetiredShards(shards.getRetiredShards()
+                                        + currentShards - targetShards);
+            }
+            // We have just drained any retired shards for the last time.
+            if (counter.getRetiredShards() > 0) {
+                retiredDrained.add(counterName);
             }
+            shards.setCounters(shards.getCounters() + 1);
+            shards.setShards(shards.getShards() + targetShards);
         }
-        cache.putAll(cacheUpdates);
-        manager.updateCounters(toReplace, toIncrement, toAddShards);
-        final Dao dao = new Dao();
-
-        //prewarm cache for stats page
-        String stats = dao.getStats();
-        cache.put("statsJson", stats, Expiration.byDeltaSeconds(ShardedCounterManager.PERSIST_TIMEOUT));
+        final long updateStart = System.currentTimeMillis();
+        manager.updateCounters(toRecord, toIncrement, toResizeShards,
+                               retiredDrained);
+        log.info("Persisted " + counters.size() + " counters of group "
+                 + partition + ": draining took " + drainMillis
+                 + "ms, saving took "
+                 + (System.currentTimeMillis() - updateStart) + "ms.");
+        recordHistory(partition, now);
+        return shards;
+    }
 
-        LanternControllerUtils.populateOKResponse(response, "OK");
+    /**
+     * Sample the counters of the given partition, as we just persisted them,
+     * into their history.
+     */
+    private void recordHistory(final String partition, final long now) {
+        try {
+            final Map<String, Long> samples = new HashMap<String, Long>();
+            for (DatastoreCounter counter : new ShardedCounterManager()
+                     .getCounters(partition).values()) {
+                samples.put(counter.getCounterName(), counter.getCount());
+            }
+            new CounterHistoryManager().record(partition, samples, now);
+        } catch (final RuntimeException e) {
+            // The counters themselves are safe, so carry on.
+            log.log(Level.SEVERE, "Could not record history of " + partition,
+                    e);
+        }
     }
 }
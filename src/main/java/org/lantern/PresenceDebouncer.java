@@ -0,0 +1,138 @@
+package org.lantern;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.mrbean.MrBeanModule;
+
+import com.google.appengine.api.memcache.ErrorHandlers;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+/**
+ * Recognizes presences that repeat one we have just processed for the same
+ * instance, so we can skip them before doing any datastore work.
+ *
+ * We remember, in memcache, a fingerprint of the last processed presence
+ * of each instance (that is, of each user and resource) for a configurable
+ * window.  The fingerprint covers all properties of the presence, so anything
+ * that changes the mode, the country, the host and port, the stats or the
+ * friends makes it count as new.  Even so, stats are deltas, so we never skip
+ * a presence that carries any, and an instance that goes unavailable is
+ * forgotten, so that it is processed in full when it comes back.
+ */
+public class PresenceDebouncer {
+
+    private static final String MEMCACHE_PREFIX = "presenceFingerprint ";
+
+    private static final AtomicLong checked = new AtomicLong();
+
+    private static final AtomicLong suppressed = new AtomicLong();
+
+    /**
+     * ObjectMappers are thread safe once configured, and costly to set up.
+     */
+    private static final ObjectMapper STATS_MAPPER = new ObjectMapper();
+    static {
+        STATS_MAPPER.registerModule(new MrBeanModule());
+    }
+
+    private PresenceDebouncer() {}
+
+    public static String fingerprint(final String resource,
+            final Map<String, String> properties) {
+        final StringBuilder sb = new StringBuilder(resource);
+        // Sort so that property order doesn't matter.
+        for (Map.Entry<String, String> entry
+                : new TreeMap<String, String>(properties).entrySet()) {
+            sb.append('\n').append(entry.getKey())
+              .append('=').append(entry.getValue());
+        }
+        return DigestUtils.sha1Hex(sb.toString());
+    }
+
+    /**
+     * @param stats the stats property of the presence, if any.
+     * @return whether we processed a presence with this fingerprint for this
+     * instance within the window, and this one has no stats to add.
+     */
+    public static boolean isDuplicate(final String userId,
+            final String resource, final String fingerprint,
+            final String stats) {
+        checked.incrementAndGet();
+        final boolean duplicate = fingerprint.equals(
+                cache().get(key(userId, resource)))
+            && !hasStats(stats);
+        if (duplicate) {
+            suppressed.incrementAndGet();
+        }
+        return duplicate;
+    }
+
+    /**
+     * Call this once a presence has been processed (or queued for
+     * processing).
+     */
+    public static void remember(final String userId, final String resource,
+            final String fingerprint, final int windowSeconds) {
+        cache().put(key(userId, resource), fingerprint,
+                    Expiration.byDeltaSeconds(windowSeconds));
+    }
+
+    /**
+     * Call this when an instance goes unavailable.
+     */
+    public static void forget(final String userId, final String resource) {
+        cache().delete(key(userId, resource));
+    }
+
+    /**
+     * @return whether the given stats property has any non-zero deltas.
+     * Stats we can't parse don't count, since we couldn't record them
+     * anyway.
+     */
+    static boolean hasStats(final String stats) {
+        if (StringUtils.isBlank(stats)) {
+            return false;
+        }
+        final Stats data;
+        try {
+            data = STATS_MAPPER.readValue(stats, Stats.class);
+        } catch (final IOException e) {
+            return false;
+        }
+        return data.getDirectRequests() != 0 || data.getDirectBytes() != 0
+            || data.getTotalProxiedRequests() != 0
+            || data.getTotalBytesProxied() != 0;
+    }
+
+    /**
+     * @return a human readable summary of how many presences this instance
+     * has suppressed.
+     */
+    public static String describeStats() {
+        final long c = checked.get();
+        final long s = suppressed.get();
+        return "checked: " + c + ", suppressed: " + s
+            + (c == 0 ? "" : " (" + (100 * s / c) + "%)");
+    }
+
+    private static String key(final String userId, final String resource) {
+        return MEMCACHE_PREFIX + userId + "/" + resource;
+    }
+
+    private static MemcacheService cache() {
+        final MemcacheService cache =
+            MemcacheServiceFactory.getMemcacheService();
+        cache.setErrorHandler(
+                ErrorHandlers.getConsistentLogAndContinue(Level.INFO));
+        return cache;
+    }
+}
@@ -0,0 +1,138 @@
+package org.lantern;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.apache.commons.lang3.StringUtils;
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.map.JsonMappingException;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.mrbean.MrBeanModule;
+import org.lantern.data.AvailablePresence;
+import org.lantern.data.Dao;
+import org.lantern.data.LegacyFriend;
+import org.lantern.data.LegacyFriends;
+
+import com.google.appengine.api.xmpp.JID;
+import com.google.appengine.api.xmpp.Message;
+import com.google.appengine.api.xmpp.MessageBuilder;
+import com.google.appengine.api.xmpp.MessageType;
+import com.google.appengine.api.xmpp.XMPPService;
+
+/**
+ * Does the datastore work for presences from invited users, either right
+ * away in XmppAvailableServlet or later in PresenceTask.
+ */
+public class PresenceProcessor {
+
+    private static final transient Logger log = Logger
+            .getLogger(PresenceProcessor.class.getName());
+
+    private PresenceProcessor() {}
+
+    public static void process(final PendingPresence pending,
+            final XMPPService xmpp) {
+        final Dao dao = new Dao();
+        final String userId = pending.getUserId();
+        if (!pending.isAvailable()) {
+            log.info(userId + "/" + pending.getResource() + " logging out.");
+            dao.updateLastAccessed(userId);
+            dao.setInstanceUnavailable(userId, pending.getResource());
+            return;
+        }
+
+        handleFriendsSync(pending, xmpp);
+
+        final AvailablePresence available = pending.getClientInfo();
+        if (available == null) {
+            dao.updateLastAccessed(userId);
+            dao.signedIn(userId, pending.getLanguage());
+            return;
+        }
+
+        final int roundTrips = dao.processAvailablePresence(available);
+        log.info("Processed presence in " + roundTrips
+                 + " datastore round trips.");
+    }
+
+    /**
+     * Only sync the friends a presence carries, for presences superseded by
+     * a later one from the same instance.
+     */
+    public static void processFriendsSync(final PendingPresence pending,
+            final XMPPService xmpp) {
+        if (pending.isAvailable()) {
+            handleFriendsSync(pending, xmpp);
+        }
+    }
+
+    private static boolean handleFriendsSync(final PendingPresence pending,
+            final XMPPService xmpp) {
+        //handle friends sync
+        final String friendsJson = pending.getFriendsJson();
+
+        log.info("Handling friend sync");
+        Dao dao = new Dao();
+
+        String userId = pending.getUserId();
+
+        final ObjectMapper mapper = new ObjectMapper();
+        mapper.registerModule(new MrBeanModule());
+
+        if (StringUtils.isEmpty(friendsJson)) {
+
+            final String friendJson = pending.getFriendJson();
+            if (StringUtils.isEmpty(friendJson)) {
+                return false;
+            }
+
+            log.info("Syncing single friend");
+            LegacyFriend clientFriend = safeMap(friendJson, mapper, LegacyFriend.class);
+            dao.syncFriend(userId, clientFriend);
+            return true;
+        }
+
+
+        LegacyFriends clientFriends = safeMap(friendsJson, mapper, LegacyFriends.class);
+
+        log.info("Synced friends count = " + clientFriends.getFriends().size());
+
+        List<LegacyFriend> changed = dao.syncFriends(userId, clientFriends);
+        log.info("Changed friends count = " + changed.size());
+        if (changed.size() > 0) {
+            Map<String, Object> response = new HashMap<String, Object>();
+            response.put(LanternConstants.FRIENDS, changed);
+            String json = JsonUtils.jsonify(response);
+
+            Message msg = new MessageBuilder()
+                    .withRecipientJids(new JID(pending.getFromJid()))
+                    .withBody(json)
+                    .withMessageType(MessageType.HEADLINE).build();
+            log.info("Sending response:\n" + json.toString());
+            xmpp.sendMessage(msg);
+        }
+
+        return true;
+    }
+
+    private static <T> T safeMap(final String json, final ObjectMapper mapper, Class<T> cls) {
+        try {
+            return mapper.readValue(json, cls);
+        } catch (final UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        } catch (final JsonParseException e) {
+            log.severe("Error parsing client message: " + e.getMessage());
+            throw new RuntimeException(e);
+        } catch (final JsonMappingException e) {
+            log.severe("Error parsing client message: " + e.getMessage());
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            log.severe("Error reading client message: " + e.getMessage());
+            throw new RuntimeException(e);
+        }
+    }
+}
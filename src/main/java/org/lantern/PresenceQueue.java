@@ -0,0 +1,125 @@
+package org.lantern;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang3.SerializationUtils;
+import org.lantern.data.AvailablePresence;
+import org.lantern.data.Dao;
+
+import com.google.appengine.api.memcache.ErrorHandlers;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskOptions;
+
+/**
+ * Defers the processing of presences to PresenceTask.
+ *
+ * Each presence travels in the payload of its own task, which runs
+ * WINDOW_MILLIS after the presence arrived, so nothing is lost if memcache
+ * evicts an entry.  Presences are coalesced per instance (that is, per user
+ * and resource): we number the presences of each instance in memcache as
+ * they arrive, and a task whose presence has been superseded by a later one
+ * by the time it runs only syncs the friends it carries, leaving the
+ * instance's state to the latest presence.  So in a burst of presences only
+ * the last one does the datastore work, whatever order their tasks run in.
+ * Should memcache lose the numbers, each task processes its own presence.
+ *
+ * Stats are deltas, so rather than let a newer presence supersede them we add
+ * them to the counters right away, which costs no datastore calls.
+ */
+public class PresenceQueue {
+
+    private static final transient Logger log = Logger
+            .getLogger(PresenceQueue.class.getName());
+
+    private static final long WINDOW_MILLIS = 10 * 1000;
+
+    // Long enough to outlive task queue retries, after which a task whose
+    // presence has been superseded would process it anyway.
+    private static final int EXPIRATION_SECONDS = 24 * 60 * 60;
+
+    private static final String MEMCACHE_PREFIX = "presenceSequence ";
+
+    private PresenceQueue() {}
+
+    public static void enqueue(final PendingPresence pending) {
+        final AvailablePresence clientInfo = pending.getClientInfo();
+        if (clientInfo != null) {
+            new Dao().recordStats(clientInfo);
+            clientInfo.setDirectRequests(0);
+            clientInfo.setDirectBytes(0);
+            clientInfo.setRequestsProxied(0);
+            clientInfo.setBytesProxied(0);
+        }
+        final long now = System.currentTimeMillis();
+        register(pending);
+        final String id = idOf(pending);
+        try {
+            QueueFactory.getDefaultQueue().add(
+                TaskOptions.Builder
+                   .withUrl("/presence_task")
+                   // Task names only allow a limited set of characters.
+                   // The sequence may start over if memcache loses it, so
+                   // we throw in the time too.
+                   .taskName("presence-" + DigestUtils.sha1Hex(id)
+                             + "-" + now + "-" + pending.getSequence())
+                   .etaMillis(now + WINDOW_MILLIS)
+                   .payload(toPayload(pending)));
+        } catch (final TaskAlreadyExistsException e) {
+            log.info("Already have a task for this presence from " + id);
+        }
+    }
+
+    /**
+     * Number the given presence after the ones we have seen from its
+     * instance.
+     */
+    static void register(final PendingPresence pending) {
+        final MemcacheService cache = cache();
+        final String key = MEMCACHE_PREFIX + idOf(pending);
+        // increment can't set an expiration.
+        cache.put(key, 0L, Expiration.byDeltaSeconds(EXPIRATION_SECONDS),
+                  SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+        final Long sequence = cache.increment(key, 1);
+        // If memcache is failing we can't coalesce, but isSuperseded won't
+        // find a sequence either.
+        pending.setSequence(sequence == null ? 0 : sequence);
+    }
+
+    /**
+     * @return whether a later presence from the same instance has been
+     * registered since the given one.
+     */
+    public static boolean isSuperseded(final PendingPresence pending) {
+        final Object latest = cache().get(MEMCACHE_PREFIX + idOf(pending));
+        // The local memcache stub returns incremented values as Strings.
+        return latest != null
+            && Long.parseLong(latest.toString()) > pending.getSequence();
+    }
+
+    static byte[] toPayload(final PendingPresence pending) {
+        return SerializationUtils.serialize(pending);
+    }
+
+    public static PendingPresence fromPayload(final byte[] payload) {
+        return (PendingPresence) SerializationUtils.deserialize(payload);
+    }
+
+    private static String idOf(final PendingPresence pending) {
+        return pending.getUserId() + "/" + pending.getResource();
+    }
+
+    private static MemcacheService cache() {
+        final MemcacheService cache =
+            MemcacheServiceFactory.getMemcacheService();
+        cache.setErrorHandler(
+                ErrorHandlers.getConsistentLogAndContinue(Level.INFO));
+        return cache;
+    }
+}
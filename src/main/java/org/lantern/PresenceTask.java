@@ -0,0 +1,39 @@
+package org.lantern;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.io.IOUtils;
+
+import com.google.appengine.api.xmpp.XMPPService;
+import com.google.appengine.api.xmpp.XMPPServiceFactory;
+
+
+@SuppressWarnings("serial")
+public class PresenceTask extends HttpServlet {
+
+    private static final transient Logger log = Logger
+            .getLogger(PresenceTask.class.getName());
+
+    @Override
+    public void doPost(final HttpServletRequest request,
+                       final HttpServletResponse response)
+            throws IOException {
+        final PendingPresence pending = PresenceQueue.fromPayload(
+                IOUtils.toByteArray(request.getInputStream()));
+        final XMPPService xmpp = XMPPServiceFactory.getXMPPService();
+        if (PresenceQueue.isSuperseded(pending)) {
+            log.info("Presence " + pending.getSequence() + " from "
+                     + pending.getUserId() + "/" + pending.getResource()
+                     + " superseded.");
+            PresenceProcessor.processFriendsSync(pending, xmpp);
+        } else {
+            PresenceProcessor.process(pending, xmpp);
+        }
+        LanternControllerUtils.populateOKResponse(response, "OK");
+    }
+}
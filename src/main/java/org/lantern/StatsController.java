@@ -1,6 +1,8 @@
 package org.lantern;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -8,12 +10,14 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.lang3.StringUtils;
 import org.lantern.data.Dao;
-import org.lantern.data.ShardedCounterManager;
-
-import com.google.appengine.api.memcache.Expiration;
-import com.google.appengine.api.memcache.MemcacheService;
-import com.google.appengine.api.memcache.MemcacheServiceFactory;
 
+/**
+ * Serves the stats document, or parts of it.
+ *
+ * A comma separated "country" parameter selects countries (and/or "global")
+ * and a comma separated "metric" parameter selects dotted metric names, as in
+ * /stats?country=IR,CN&amp;metric=nusers.online.
+ */
 @SuppressWarnings("serial")
 public class StatsController extends HttpServlet {
 
@@ -21,27 +25,67 @@ public class StatsController extends HttpServlet {
     public void doGet(final HttpServletRequest request,
         final HttpServletResponse response) throws IOException {
 
-        final Dao dao = new Dao();
-        MemcacheService cache = MemcacheServiceFactory.getMemcacheService();
-        String finalData = (String) cache.get("statsJson");
-        if (finalData == null) {
-            finalData = dao.getStats();
-            cache.put("statsJson", finalData, Expiration.byDeltaSeconds(ShardedCounterManager.PERSIST_TIMEOUT));
+        final StatsSnapshot snapshot = StatsSnapshot.current();
+        if (snapshot == null) {
+            // Someone else is building the first one.
+            response.setHeader("Retry-After", "5");
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
         }
 
-        final String responseString;
+        final List<String> countries = split(request.getParameter("country"));
+        if (countries != null) {
+            for (int i = 0; i < countries.size(); i++) {
+                final String country = countries.get(i);
+                countries.set(i, Dao.GLOBAL.equalsIgnoreCase(country)
+                                 ? Dao.GLOBAL : country.toUpperCase());
+            }
+        }
+        final List<String> metrics = split(request.getParameter("metric"));
+        final boolean partial = countries != null || metrics != null;
         final String functionName = request.getParameter("callback");
-        if (StringUtils.isBlank(functionName)) {
-            responseString = finalData;
+
+        // Partial documents are small enough not to bother compressing.
+        final String acceptEncoding = request.getHeader("Accept-Encoding");
+        final boolean gzip = !partial && StringUtils.isBlank(functionName)
+            && acceptEncoding != null && acceptEncoding.contains("gzip");
+
+        // Any callback is part of the URL, so it's fine for JSONP responses
+        // to share the ETag of the snapshot.  Either ETag of the current
+        // snapshot means the client has it already.
+        response.setHeader("ETag",
+            gzip ? snapshot.getGzipETag() : snapshot.getETag());
+        response.setHeader("Vary", "Accept-Encoding");
+        final String ifNoneMatch = request.getHeader("If-None-Match");
+        if (snapshot.getETag().equals(ifNoneMatch)
+            || snapshot.getGzipETag().equals(ifNoneMatch)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        final byte[] content;
+        if (gzip) {
             response.setContentType("application/json");
+            response.setHeader("Content-Encoding", "gzip");
+            content = snapshot.getGzipped();
+        } else if (StringUtils.isBlank(functionName)) {
+            response.setContentType("application/json");
+            content = partial
+                ? snapshot.select(countries, metrics) : snapshot.getJson();
         } else {
-            responseString = functionName + "(" + finalData + ");";
+            final byte[] prefix = (functionName + "(").getBytes("UTF-8");
+            final byte[] suffix = ");".getBytes("UTF-8");
+            final byte[] json = partial
+                ? snapshot.select(countries, metrics) : snapshot.getJson();
+            content = new byte[prefix.length + json.length + suffix.length];
+            System.arraycopy(prefix, 0, content, 0, prefix.length);
+            System.arraycopy(json, 0, content, prefix.length, json.length);
+            System.arraycopy(suffix, 0, content, prefix.length + json.length,
+                             suffix.length);
             response.setContentType("text/javascript");
         }
 
         response.setStatus(HttpServletResponse.SC_OK);
-
-        final byte[] content = responseString.getBytes("UTF-8");
         response.setContentLength(content.length);
 
         final OutputStream os = response.getOutputStream();
@@ -50,4 +94,21 @@ public class StatsController extends HttpServlet {
         os.write(content);
         os.flush();
     }
+
+    /**
+     * @return the non-blank comma separated values of the given parameter,
+     * or null if there are none.
+     */
+    private static List<String> split(final String parameter) {
+        if (StringUtils.isBlank(parameter)) {
+            return null;
+        }
+        final List<String> values = new ArrayList<String>();
+        for (String value : parameter.split(",")) {
+            if (StringUtils.isNotBlank(value)) {
+                values.add(value.trim());
+            }
+        }
+        return values.isEmpty() ? null : values;
+    }
 }
@@ -0,0 +1,122 @@
+package org.lantern;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang3.StringUtils;
+import org.lantern.data.CounterHistory;
+import org.lantern.data.CounterHistoryManager;
+import org.lantern.data.CounterHistoryManager.Resolution;
+
+/**
+ * Serves the history of a counter, as in
+ * /stats/history?counter=global.nusers.online&amp;from=...&amp;to=...
+ *
+ * from and to are in epoch seconds, and default to the last day.  Unless a
+ * "resolution" (minute, hour or day) is given, we pick the finest one that
+ * is still kept for the whole range without returning too many points.
+ */
+@SuppressWarnings("serial")
+public class StatsHistoryController extends HttpServlet {
+
+    // Longest ranges (in seconds) we serve by default at minute and hour
+    // resolution.
+    private static final long MINUTE_RANGE =
+        2L * CounterHistory.SECONDS_PER_DAY;
+
+    private static final long HOUR_RANGE =
+        31L * CounterHistory.SECONDS_PER_DAY;
+
+    @Override
+    public void doGet(final HttpServletRequest request,
+        final HttpServletResponse response) throws IOException {
+
+        final String counter = request.getParameter("counter");
+        if (StringUtils.isBlank(counter)) {
+            LanternControllerUtils.populateErrorResponse(response,
+                                                         "No counter");
+            return;
+        }
+        final long now = System.currentTimeMillis() / 1000;
+        final long to;
+        final long from;
+        final Resolution resolution;
+        try {
+            to = parseSeconds(request.getParameter("to"), now);
+            from = parseSeconds(request.getParameter("from"),
+                                to - CounterHistory.SECONDS_PER_DAY);
+            resolution = resolution(request.getParameter("resolution"),
+                                    from, now);
+        } catch (final IllegalArgumentException e) {
+            LanternControllerUtils.populateErrorResponse(response,
+                                                         e.getMessage());
+            return;
+        }
+        if (from > to) {
+            LanternControllerUtils.populateErrorResponse(response,
+                                                         "from is after to");
+            return;
+        }
+
+        final SortedMap<Long, Long> values = new CounterHistoryManager()
+            .query(counter, from, to, resolution);
+        final List<long[]> points = new ArrayList<long[]>(values.size());
+        for (Map.Entry<Long, Long> entry : values.entrySet()) {
+            points.add(new long[] { entry.getKey(), entry.getValue() });
+        }
+        final Map<String, Object> data = new LinkedHashMap<String, Object>();
+        data.put("counter", counter);
+        data.put("resolution", resolution.name());
+        data.put("from", from);
+        data.put("to", to);
+        data.put("points", points);
+
+        final byte[] content = JsonUtils.jsonify(data).getBytes("UTF-8");
+        response.setContentType("application/json");
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentLength(content.length);
+        final OutputStream os = response.getOutputStream();
+        os.write(content);
+        os.flush();
+    }
+
+    private static long parseSeconds(final String value, final long dflt) {
+        if (StringUtils.isBlank(value)) {
+            return dflt;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (final NumberFormatException e) {
+            throw new IllegalArgumentException("Bad time: " + value);
+        }
+    }
+
+    private static Resolution resolution(final String value, final long from,
+            final long now) {
+        if (StringUtils.isNotBlank(value)) {
+            try {
+                return Resolution.valueOf(value.trim());
+            } catch (final IllegalArgumentException e) {
+                throw new IllegalArgumentException(
+                        "Bad resolution: " + value);
+            }
+        }
+        final long age = now - from;
+        if (age <= MINUTE_RANGE) {
+            return Resolution.minute;
+        } else if (age <= HOUR_RANGE) {
+            return Resolution.hour;
+        } else {
+            return Resolution.day;
+        }
+    }
+}
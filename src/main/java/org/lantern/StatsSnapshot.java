@@ -0,0 +1,435 @@
+package org.lantern;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.lantern.data.Dao;
+import org.lantern.data.ShardedCounterManager;
+import org.lantern.data.StatsData;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.IdentifiableValue;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+/**
+ * The stats document as we serve it, serialized and gzipped once when it is
+ * published rather than on every request.
+ *
+ * PersistController publishes a new one every cycle.  Instances keep the
+ * latest one they fetched for a few seconds, so most requests don't even
+ * need to go to memcache.
+ *
+ * As we write the whole document, we note where the JSON of each country
+ * (and of Dao.GLOBAL) is in it, so that requests for a few countries just
+ * copy those out.  A snapshot also holds the values it was written
+ * from, so that requests for a few metrics are written straight from those.
+ * Either way a request costs about as much as it returns.
+ *
+ * Snapshots outlive their cycle in memcache, so that if the persist cron is
+ * late we keep serving the last good one while a single request, holding a
+ * lease, builds a fresh one.  A snapshot's version is when its counters were
+ * persisted, so if the cron hasn't persisted them since, there is nothing to
+ * rebuild, and we keep serving the stale one, ETag and all.
+ */
+public final class StatsSnapshot implements Serializable {
+
+    private static final long serialVersionUID = -2197346604580281017L;
+
+    private static final transient Logger log =
+        Logger.getLogger(StatsSnapshot.class.getName());
+
+    private static final String MEMCACHE_KEY = "statsSnapshot";
+
+    private static final String LEASE_KEY = "statsSnapshotLease";
+
+    // How long (in seconds) memcache keeps a snapshot around to be served
+    // stale.
+    private static final int EXPIRATION_SECONDS = 24 * 60 * 60;
+
+    // After this long (in milliseconds) a snapshot is stale and we try to
+    // replace it.  This allows for one missed persist cycle.
+    private static final long FRESH_MILLIS =
+        2 * ShardedCounterManager.PERSIST_TIMEOUT * 1000L;
+
+    // How long (in seconds) the request rebuilding a snapshot may take before
+    // someone else gets to try.
+    private static final int LEASE_SECONDS = 30;
+
+    // What the lease holds once its holder is done with it.  Memcache can't
+    // delete a value only if it is still ours, but it can replace it.
+    private static final String RELEASED = "released";
+
+    // What the lease holds, for RECHECK_SECONDS, once its holder found no
+    // counters newer than the stale snapshot, so that no one looks again
+    // until then.
+    private static final String CHECKED = "checked";
+
+    private static final int RECHECK_SECONDS =
+        ShardedCounterManager.PERSIST_TIMEOUT;
+
+    // How long (in milliseconds) requests wait for the lease holder when we
+    // have nothing at all to serve, before giving up.
+    private static final long WAIT_MILLIS = 5 * 1000;
+
+    private static final long POLL_MILLIS = 200;
+
+    // How long (in milliseconds) instances serve a snapshot without checking
+    // for a newer one.
+    private static final long LOCAL_MILLIS = 10 * 1000;
+
+    private static volatile StatsSnapshot local;
+
+    private static volatile long localFetched;
+
+    private static final AtomicInteger rebuilds = new AtomicInteger();
+
+    private final long version;
+
+    private final byte[] json;
+
+    private final byte[] gzipped;
+
+    /**
+     * Where the JSON of each scope of the layout (Dao.GLOBAL, then each
+     * country) starts and ends in json.
+     */
+    private final int[] fragmentStarts;
+
+    private final int[] fragmentEnds;
+
+    /**
+     * What we serialized, for picking out metrics.
+     */
+    private final StatsData data;
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    /**
+     * Reused to write documents, so that we only allocate their final copy.
+     */
+    private static final ThreadLocal<ByteArrayOutputStream> BUFFER =
+        new ThreadLocal<ByteArrayOutputStream>() {
+            @Override
+            protected ByteArrayOutputStream initialValue() {
+                return new ByteArrayOutputStream(64 * 1024);
+            }
+        };
+
+    private StatsSnapshot(final long version, final byte[] json,
+            final byte[] gzipped, final int[] fragmentStarts,
+            final int[] fragmentEnds, final StatsData data) {
+        this.version = version;
+        this.json = json;
+        this.gzipped = gzipped;
+        this.fragmentStarts = fragmentStarts;
+        this.fragmentEnds = fragmentEnds;
+        this.data = data;
+    }
+
+    /**
+     * Serialize and compress the given stats, and make them the ones we
+     * serve.
+     *
+     * @param stats as returned by Dao.getStatsData().
+     * @param version when the counters in them were persisted, in epoch
+     * milliseconds.
+     */
+    public static StatsSnapshot publish(final StatsData stats,
+            final long version) {
+        final StatsData.Layout layout = stats.getLayout();
+        final int[] starts = new int[layout.getScopeCount()];
+        final int[] ends = new int[starts.length];
+        final StatsSnapshot snapshot;
+        try {
+            final ByteArrayOutputStream buffer = BUFFER.get();
+            buffer.reset();
+            final JsonGenerator generator =
+                JSON_FACTORY.createJsonGenerator(buffer, JsonEncoding.UTF8);
+            stats.writeDocument(generator, new StatsData.ScopeListener() {
+                @Override
+                public void scopeStarted(final int scope)
+                        throws IOException {
+                    generator.flush();
+                    // The opening brace is the last thing written.
+                    starts[scope] = buffer.size() - 1;
+                }
+
+                @Override
+                public void scopeEnded(final int scope) throws IOException {
+                    generator.flush();
+                    ends[scope] = buffer.size();
+                }
+            });
+            generator.close();
+
+            final byte[] json = buffer.toByteArray();
+            final ByteArrayOutputStream bytes =
+                new ByteArrayOutputStream(json.length / 4);
+            final GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+            gzip.write(json);
+            gzip.close();
+            snapshot = new StatsSnapshot(version, json, bytes.toByteArray(),
+                                         starts, ends, stats);
+        } catch (final IOException e) {
+            throw new RuntimeException("Could not write stats", e);
+        }
+        cache().put(MEMCACHE_KEY, snapshot,
+                    Expiration.byDeltaSeconds(EXPIRATION_SECONDS));
+        local = snapshot;
+        localFetched = System.currentTimeMillis();
+        return snapshot;
+    }
+
+    /**
+     * @return the snapshot to serve now.  This may be stale, in which case
+     * one caller at a time rebuilds it and the rest keep serving the stale
+     * one meanwhile.  If we have none at all and someone else is building
+     * one, we wait a few seconds for it, and return null if it doesn't come.
+     */
+    public static StatsSnapshot current() {
+        final StatsSnapshot snapshot = latest();
+        if (snapshot != null && snapshot.isFresh()) {
+            return snapshot;
+        }
+        final MemcacheService cache = cache();
+        final String lease = acquireLease(cache);
+        if (lease != null) {
+            boolean checked = false;
+            try {
+                // Whoever held the lease before us may have just published
+                // a fresh one.
+                final StatsSnapshot published =
+                    (StatsSnapshot) cache.get(MEMCACHE_KEY);
+                if (published != null && published.isFresh()) {
+                    local = published;
+                    localFetched = System.currentTimeMillis();
+                    return published;
+                }
+                final Dao dao = new Dao();
+                final long version = dao.getStatsVersion();
+                if (published != null && published.getVersion() == version) {
+                    log.info("No counters persisted since the stats snapshot"
+                             + " of " + version + ".");
+                    checked = true;
+                    local = published;
+                    localFetched = System.currentTimeMillis();
+                    return published;
+                }
+                return rebuild(dao, version);
+            } finally {
+                releaseLease(cache, lease, checked);
+            }
+        }
+        if (snapshot != null) {
+            return snapshot;
+        }
+        // Nothing to serve, so wait for whoever holds the lease.
+        final long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(POLL_MILLIS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            final StatsSnapshot published =
+                (StatsSnapshot) cache.get(MEMCACHE_KEY);
+            if (published != null) {
+                local = published;
+                localFetched = System.currentTimeMillis();
+                return published;
+            }
+        }
+        log.warning("Gave up waiting for stats snapshot.");
+        return null;
+    }
+
+    /**
+     * @return a token to release the lease with, or null if someone else
+     * holds it.
+     */
+    private static String acquireLease(final MemcacheService cache) {
+        final String token = UUID.randomUUID().toString();
+        final Expiration expiration =
+            Expiration.byDeltaSeconds(LEASE_SECONDS);
+        if (cache.put(LEASE_KEY, token, expiration,
+                      SetPolicy.ADD_ONLY_IF_NOT_PRESENT)) {
+            return token;
+        }
+        final IdentifiableValue held = cache.getIdentifiable(LEASE_KEY);
+        if (held != null && RELEASED.equals(held.getValue())
+            && cache.putIfUntouched(LEASE_KEY, held, token, expiration)) {
+            return token;
+        }
+        return null;
+    }
+
+    /**
+     * Release the lease, unless it expired and someone else holds it now.
+     *
+     * @param checked whether we found nothing to rebuild, in which case the
+     * lease stays taken for RECHECK_SECONDS.
+     */
+    private static void releaseLease(final MemcacheService cache,
+            final String token, final boolean checked) {
+        final IdentifiableValue held = cache.getIdentifiable(LEASE_KEY);
+        if (held != null && token.equals(held.getValue())) {
+            cache.putIfUntouched(LEASE_KEY, held,
+                    checked ? CHECKED : RELEASED,
+                    Expiration.byDeltaSeconds(
+                        checked ? RECHECK_SECONDS : LEASE_SECONDS));
+        } else {
+            log.warning("Our stats snapshot lease expired.");
+        }
+    }
+
+    private static StatsSnapshot rebuild(final Dao dao, final long version) {
+        log.info("Rebuilding stats snapshot (" + rebuilds.incrementAndGet()
+                 + " times in this instance).");
+        return publish(dao.getStatsData(), version);
+    }
+
+    /**
+     * @return how many times this instance rebuilt a snapshot.
+     */
+    static int getRebuilds() {
+        return rebuilds.get();
+    }
+
+    /**
+     * @return the latest snapshot, stale or not, or null if there is none.
+     */
+    public static StatsSnapshot latest() {
+        final StatsSnapshot snapshot = local;
+        final long now = System.currentTimeMillis();
+        if (snapshot != null && now - localFetched < LOCAL_MILLIS) {
+            return snapshot;
+        }
+        final StatsSnapshot cached = (StatsSnapshot) cache().get(MEMCACHE_KEY);
+        if (cached != null) {
+            local = cached;
+            localFetched = now;
+        }
+        return cached;
+    }
+
+    public boolean isFresh() {
+        return System.currentTimeMillis() - version < FRESH_MILLIS;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public String getETag() {
+        return "\"" + version + "\"";
+    }
+
+    /**
+     * @return the ETag of the gzipped document, which can't be the same as
+     * that of the plain one since they aren't byte for byte equal.
+     */
+    public String getGzipETag() {
+        return "\"" + version + "-gz\"";
+    }
+
+    /**
+     * @return the stats document as UTF-8 JSON.  Don't modify this.
+     */
+    public byte[] getJson() {
+        return json;
+    }
+
+    /**
+     * @return the gzipped JSON.  Don't modify this.
+     */
+    public byte[] getGzipped() {
+        return gzipped;
+    }
+
+    /**
+     * Pick parts of the document, keeping its shape.  For instance, selecting
+     * metric "nusers.online" from country "IR" gives
+     * {"countries":{"IR":{"nusers":{"online":...}}}}.
+     *
+     * The totals at the top level of the full document are only in that.
+     *
+     * @param selected Dao.GLOBAL and/or country codes, or null for all of
+     * them.  Unknown ones are left out.
+     * @param metrics dotted metric names, or null for all of them.  A
+     * metric may name a subtree, like "npeers.online".
+     * @return the selection as UTF-8 JSON.
+     */
+    public byte[] select(final Collection<String> selected,
+            final Collection<String> metrics) {
+        final StatsData.Layout layout = data.getLayout();
+        final boolean[] scopes = new boolean[layout.getScopeCount()];
+        if (selected == null) {
+            Arrays.fill(scopes, true);
+        } else {
+            for (String name : selected) {
+                final int scope = layout.indexOfScope(name);
+                if (scope >= 0) {
+                    scopes[scope] = true;
+                }
+            }
+        }
+        final boolean[] selectedMetrics =
+            metrics == null ? null : layout.selectMetrics(metrics);
+        boolean anyCountry = false;
+        for (int scope = 1; scope < scopes.length; scope++) {
+            anyCountry |= scopes[scope];
+        }
+        try {
+            final ByteArrayOutputStream buffer = BUFFER.get();
+            buffer.reset();
+            final JsonGenerator generator =
+                JSON_FACTORY.createJsonGenerator(buffer, JsonEncoding.UTF8);
+            generator.writeStartObject();
+            if (anyCountry || !scopes[0]) {
+                generator.writeObjectFieldStart(Dao.COUNTRIES);
+                for (int scope = 1; scope < scopes.length; scope++) {
+                    if (scopes[scope]) {
+                        writeSelection(generator, scope, selectedMetrics);
+                    }
+                }
+                generator.writeEndObject();
+            }
+            if (scopes[0]) {
+                writeSelection(generator, 0, selectedMetrics);
+            }
+            generator.writeEndObject();
+            generator.close();
+            return buffer.toByteArray();
+        } catch (final IOException e) {
+            throw new RuntimeException("Could not write stats selection", e);
+        }
+    }
+
+    private void writeSelection(final JsonGenerator generator,
+            final int scope, final boolean[] metrics) throws IOException {
+        generator.writeFieldName(data.getLayout().getScope(scope));
+        if (metrics == null) {
+            // This is JSON the generator wrote in the first place.
+            generator.writeRawValue(new String(json, fragmentStarts[scope],
+                    fragmentEnds[scope] - fragmentStarts[scope], "UTF-8"));
+        } else {
+            data.writeScope(generator, scope, metrics);
+        }
+    }
+
+    private static MemcacheService cache() {
+        return MemcacheServiceFactory.getMemcacheService();
+    }
+}
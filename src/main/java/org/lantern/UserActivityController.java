@@ -0,0 +1,26 @@
+package org.lantern;
+
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.lantern.data.Dao;
+
+/**
+ * Persists the last access times and stats that the Dao buffers in memcache.
+ */
+@SuppressWarnings("serial")
+public class UserActivityController extends HttpServlet {
+    private static final transient Logger log = Logger
+            .getLogger(UserActivityController.class.getName());
+
+    @Override
+    public void doGet(final HttpServletRequest request,
+            final HttpServletResponse response) {
+        final int updated = new Dao().flushUserActivity();
+        log.info("Flushed activity of " + updated + " users.");
+        LanternControllerUtils.populateOKResponse(response, "OK");
+    }
+}
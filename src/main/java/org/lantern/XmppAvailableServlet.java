@@ -1,7 +1,6 @@
 package org.lantern;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -19,13 +18,10 @@ import org.codehaus.jackson.JsonParseException;
 import org.codehaus.jackson.map.JsonMappingException;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.mrbean.MrBeanModule;
+import org.lantern.data.AvailablePresence;
 import org.lantern.data.Dao;
-import org.lantern.data.LegacyFriend;
-import org.lantern.data.LegacyFriends;
 import org.lantern.state.Mode;
-import org.w3c.dom.Document;
 
-import com.google.appengine.api.xmpp.JID;
 import com.google.appengine.api.xmpp.Message;
 import com.google.appengine.api.xmpp.MessageBuilder;
 import com.google.appengine.api.xmpp.MessageType;
@@ -51,52 +47,77 @@ public class XmppAvailableServlet extends HttpServlet {
             return;
         }
 
-        Document doc = LanternControllerUtils.buildDoc(presence);
+        final Map<String, String> properties =
+                LanternControllerUtils.getProperties(presence);
 
         final Map<String,Object> responseJson =
                 new LinkedHashMap<String,Object>();
         final Dao dao = new Dao();
         final String from = LanternControllerUtils.userId(presence);
+        final String resource = LanternControllerUtils.resourceId(presence);
+        final boolean isInvite = isInvite(properties);
+
+        // Clients may resend the same presence.  We can only have processed
+        // this one if the user is invited.
+        final int debounceSeconds = dao.getPresenceDebounceSeconds();
+        final String fingerprint =
+            debounceSeconds > 0 && presence.isAvailable() && !isInvite
+            ? PresenceDebouncer.fingerprint(resource, properties) : null;
+        if (isRepeated(from, resource, presence.isAvailable(), fingerprint,
+                       properties)) {
+            log.info("Ignoring repeated presence from " + from + "/"
+                     + resource);
+            responseJson.put(LanternConstants.INVITED, Boolean.TRUE);
+            sendUpdateTime(presence, xmpp, responseJson);
+            return;
+        }
+
         if (!dao.isInvited(from)) {
             log.info(from+" not invited!!");
             processNotInvited(presence, xmpp, responseJson);
             return;
         } else {
             log.info("User is invited: " + presence.getFromJid());
-            dao.updateLastAccessed(from);
             responseJson.put(LanternConstants.INVITED, Boolean.TRUE);
         }
 
         final String userId = LanternXmppUtils.jidToEmail(from);
-        final String resource = LanternControllerUtils.resourceId(presence);
-        final String instanceId = LanternControllerUtils.getProperty(doc,
-                "instanceId");
-        final String hostAndPort = LanternControllerUtils.getProperty(doc,
-                LanternConstants.HOST_AND_PORT);
+        final String instanceId = LanternControllerUtils.getProperty(
+                properties, "instanceId");
+        final String hostAndPort = LanternControllerUtils.getProperty(
+                properties, LanternConstants.HOST_AND_PORT);
         final String fallbackHostAndPort = LanternControllerUtils.getProperty(
-                doc, LanternConstants.FALLBACK_HOST_AND_PORT);
+                properties, LanternConstants.FALLBACK_HOST_AND_PORT);
         final boolean isFallbackProxy = "true".equalsIgnoreCase(
-                LanternControllerUtils.getProperty(doc,
+                LanternControllerUtils.getProperty(properties,
                         LanternConstants.IS_FALLBACK_PROXY));
         
+        final PendingPresence pending = new PendingPresence();
+        pending.setUserId(userId);
+        pending.setFromJid(presence.getFromJid().getId());
+        pending.setResource(resource);
+        pending.setAvailable(presence.isAvailable());
+
         if (!presence.isAvailable()) {
-            log.info(userId + "/" + resource + " logging out.");
-            dao.setInstanceUnavailable(userId, resource);
+            if (dao.arePresencesAsync()) {
+                PresenceQueue.enqueue(pending);
+            } else {
+                PresenceProcessor.process(pending, xmpp);
+            }
             return;
         }
         
-        if (isInvite(doc)) {
+        if (isInvite) {
             log.info("Got invite in stanza: "+presence.getStanza());
+            dao.updateLastAccessed(from);
             final String invitedEmail =
-                    LanternControllerUtils.getProperty(doc,
+                    LanternControllerUtils.getProperty(properties,
                         LanternConstants.INVITED_EMAIL);
-            queueInvite(xmpp, presence, doc, invitedEmail);
+            queueInvite(xmpp, presence, properties, invitedEmail);
             return;
         }
 
-        handleFriendsSync(doc, presence.getFromJid(), xmpp);
-
-        String modeStr = LanternControllerUtils.getProperty(doc, "mode");
+        String modeStr = LanternControllerUtils.getProperty(properties, "mode");
         Mode mode;
         if ("give".equals(modeStr)) {
             mode = Mode.give;
@@ -106,91 +127,56 @@ public class XmppAvailableServlet extends HttpServlet {
             // We don't believe the controller should ever get unknown mode
             // presences.
             log.warning("Ignoring presence in '" + modeStr + "' mode.");
+            dao.updateLastAccessed(from);
             return;
         }
 
         final String stats =
-            LanternControllerUtils.getProperty(doc, "stats");
+            LanternControllerUtils.getProperty(properties, "stats");
 
         final String name =
-                LanternControllerUtils.getProperty(doc, "name");
-
-        processClientInfo(presence, stats, userId, instanceId,
-                name, mode, resource, hostAndPort, fallbackHostAndPort,
-                isFallbackProxy);
-
-        sendUpdateTime(presence, xmpp, responseJson);
+                LanternControllerUtils.getProperty(properties, "name");
 
         final String language =
-                LanternControllerUtils.getProperty(doc, "language");
-
-        dao.signedIn(from, language);
-    }
-
-    private boolean handleFriendsSync(Document doc, JID fromJid, XMPPService xmpp) {
-        //handle friends sync
-        final String friendsJson =
-                LanternControllerUtils.getProperty(doc, LanternConstants.FRIENDS);
-
-        log.info("Handling friend sync");
-        Dao dao = new Dao();
-
-        String userId = LanternXmppUtils.jidToEmail(fromJid.getId());
-
-        final ObjectMapper mapper = new ObjectMapper();
-        mapper.registerModule(new MrBeanModule());
-
-        if (StringUtils.isEmpty(friendsJson)) {
-
-            final String friendJson =
-                    LanternControllerUtils.getProperty(doc, LanternConstants.FRIEND);
-            if (StringUtils.isEmpty(friendJson)) {
-                return false;
-            }
-
-            log.info("Syncing single friend");
-            LegacyFriend clientFriend = safeMap(friendJson, mapper, LegacyFriend.class);
-            dao.syncFriend(userId, clientFriend);
-            return true;
+                LanternControllerUtils.getProperty(properties, "language");
+
+        pending.setLanguage(language);
+        pending.setFriendsJson(LanternControllerUtils.getProperty(
+                properties, LanternConstants.FRIENDS));
+        pending.setFriendJson(LanternControllerUtils.getProperty(
+                properties, LanternConstants.FRIEND));
+        pending.setClientInfo(processClientInfo(stats,
+                userId, instanceId, name, language, mode, resource,
+                hostAndPort, fallbackHostAndPort, isFallbackProxy));
+
+        if (dao.arePresencesAsync()) {
+            sendUpdateTime(presence, xmpp, responseJson);
+            PresenceQueue.enqueue(pending);
+        } else {
+            PresenceProcessor.process(pending, xmpp);
+            sendUpdateTime(presence, xmpp, responseJson);
         }
-
-
-        LegacyFriends clientFriends = safeMap(friendsJson, mapper, LegacyFriends.class);
-
-        log.info("Synced friends count = " + clientFriends.getFriends().size());
-
-        List<LegacyFriend> changed = dao.syncFriends(userId, clientFriends);
-        log.info("Changed friends count = " + changed.size());
-        if (changed.size() > 0) {
-            Map<String, Object> response = new HashMap<String, Object>();
-            response.put(LanternConstants.FRIENDS, changed);
-            String json = JsonUtils.jsonify(response);
-
-            Message msg = new MessageBuilder()
-                    .withRecipientJids(fromJid).withBody(json)
-                    .withMessageType(MessageType.HEADLINE).build();
-            log.info("Sending response:\n" + json.toString());
-            xmpp.sendMessage(msg);
+        if (fingerprint != null) {
+            PresenceDebouncer.remember(from, resource, fingerprint,
+                                       debounceSeconds);
         }
-
-        return true;
     }
 
-    private <T> T safeMap(final String json, final ObjectMapper mapper, Class<T> cls) {
-        try {
-            return mapper.readValue(json, cls);
-        } catch (final UnsupportedEncodingException e) {
-            throw new RuntimeException(e);
-        } catch (final JsonParseException e) {
-            log.severe("Error parsing client message: " + e.getMessage());
-            throw new RuntimeException(e);
-        } catch (final JsonMappingException e) {
-            log.severe("Error parsing client message: " + e.getMessage());
-            throw new RuntimeException(e);
-        } catch (IOException e) {
-            log.severe("Error reading client message: " + e.getMessage());
-            throw new RuntimeException(e);
+    /**
+     * @param fingerprint of the presence, or null if we don't debounce it.
+     * @return whether we have just processed the same presence from the
+     * same instance, so that we only need to answer this one.
+     */
+    static boolean isRepeated(final String userId, final String resource,
+            final boolean available, final String fingerprint,
+            final Map<String, String> properties) {
+        if (!available) {
+            PresenceDebouncer.forget(userId, resource);
+            return false;
         }
+        return fingerprint != null
+            && PresenceDebouncer.isDuplicate(userId, resource, fingerprint,
+                   LanternControllerUtils.getProperty(properties, "stats"));
     }
 
     private void inviteSucceeded(XMPPService xmpp, Presence presence,
@@ -215,7 +201,7 @@ public class XmppAvailableServlet extends HttpServlet {
 
     private final class AlreadyInvitedException extends Exception {}
 
-    private void queueInvite(XMPPService xmpp, final Presence presence, final Document doc,
+    private void queueInvite(XMPPService xmpp, final Presence presence, final Map<String, String> properties,
             final String invitedEmail) {
         // XXX this is really a jabberid, email template makes it a "mailto:" link
         final String inviterEmail = LanternControllerUtils.userId(presence);
@@ -233,7 +219,7 @@ public class XmppAvailableServlet extends HttpServlet {
             return;
         }
         final String refreshToken = LanternControllerUtils.getProperty(
-                doc, LanternConstants.INVITER_REFRESH_TOKEN);
+                properties, LanternConstants.INVITER_REFRESH_TOKEN);
         if (refreshToken == null) {
             log.info("No refresh token.");
             //do not even queue invite, because no refresh token
@@ -250,8 +236,8 @@ public class XmppAvailableServlet extends HttpServlet {
         inviteSucceeded(xmpp, presence, invitedEmail);
     }
 
-    private boolean isInvite(final Document doc) {
-        final String invite = LanternControllerUtils.getProperty(doc,
+    private boolean isInvite(final Map<String, String> properties) {
+        final String invite = LanternControllerUtils.getProperty(properties,
             LanternConstants.INVITED_EMAIL);
         boolean isInvite = !StringUtils.isBlank(invite);
         if (isInvite) {
@@ -277,19 +263,23 @@ public class XmppAvailableServlet extends HttpServlet {
         sendResponse(presence, xmpp, responseJson);
     }
 
-    private void processClientInfo(final Presence presence,
-        final String stats, final String idToUse, final String instanceId,
-        final String name, final Mode mode, final String resource,
+    /**
+     * @return everything we need to process this available presence, or
+     * null if we can't track stats for it.
+     */
+    private AvailablePresence processClientInfo(final String stats,
+        final String idToUse, final String instanceId, final String name,
+        final String language, final Mode mode, final String resource,
         final String hostAndPort, final String fallbackHostAndPort,
         final boolean isFallbackProxy) {
 
         if (StringUtils.isBlank(stats)) {
             log.info("No stats to process!");
-            return;
+            return null;
         }
         if (StringUtils.isBlank(instanceId)) {
             log.info("Old client; not tracking stats");
-            return;
+            return null;
         }
 
         log.info("Processing stats!");
@@ -297,30 +287,28 @@ public class XmppAvailableServlet extends HttpServlet {
         mapper.registerModule(new MrBeanModule());
         try {
             final Stats data = mapper.readValue(stats, Stats.class);
-            // The following will delete the instance if it's not available,
-            // updating all counters.
-            // (aranhoide: XXX is the comment above still accurate?  I remember
-            // at some point available/unavailable events were being handled
-            // together up to here, but not anymore.)
-            log.info("Setting instance availability");
-            final Dao dao = new Dao();
             String countryCode = data.getCountryCode();
             if (StringUtils.isBlank(countryCode)) {
                 countryCode = "XX";
             }
-            dao.setInstanceAvailable(idToUse, instanceId, countryCode, mode,
-                                     resource, hostAndPort, isFallbackProxy);
-            if (isFallbackProxy) {
-                dao.transitionInstallerLocation(idToUse, instanceId);
-            } else {
-                dao.processFallbackProxyHostAndPort(
-                        idToUse, fallbackHostAndPort);
-            }
-            try {
-                updateStats(data, idToUse, instanceId, name, mode);
-            } catch (final UnsupportedOperationException e) {
-                log.severe("Error updating stats: "+e.getMessage());
-            }
+            final AvailablePresence available = new AvailablePresence();
+            available.setUserId(idToUse);
+            available.setInstanceId(instanceId);
+            available.setResource(resource);
+            available.setCountryCode(countryCode);
+            available.setMode(mode);
+            available.setName(name);
+            available.setLanguage(language);
+            available.setListenHostAndPort(hostAndPort);
+            available.setFallbackHostAndPort(fallbackHostAndPort);
+            available.setFallbackProxy(isFallbackProxy);
+            available.setDirectRequests(data.getDirectRequests());
+            available.setDirectBytes(data.getDirectBytes());
+            available.setRequestsProxied(data.getTotalProxiedRequests());
+            available.setBytesProxied(data.getTotalBytesProxied());
+            return available;
+        } catch (final UnsupportedOperationException e) {
+            log.severe("Error reading stats: "+e.getMessage());
         } catch (final JsonParseException e) {
             log.severe("Error parsing stats: "+e.getMessage());
         } catch (final JsonMappingException e) {
@@ -328,6 +316,7 @@ public class XmppAvailableServlet extends HttpServlet {
         } catch (final IOException e) {
             log.severe("Error parsing stats: "+e.getMessage());
         }
+        return null;
     }
 
     private void sendResponse(final Presence presence, final XMPPService xmpp,
@@ -340,20 +329,4 @@ public class XmppAvailableServlet extends HttpServlet {
         log.info("Sending response:\n"+responseJson.toString());
         xmpp.sendMessage(msg);
     }
-
-    private void updateStats(final Stats data, final String idToUse,
-            final String instanceId, final String name, final Mode mode) {
-
-        final Dao dao = new Dao();
-
-        log.info("Updating stats");
-        String countryCode = data.getCountryCode();
-        if (StringUtils.isBlank(countryCode)) {
-            countryCode = "XX";
-        }
-        dao.updateUser(idToUse, data.getDirectRequests(),
-            data.getDirectBytes(), data.getTotalProxiedRequests(),
-            data.getTotalBytesProxied(),
-            countryCode, name, mode);
-    }
 }
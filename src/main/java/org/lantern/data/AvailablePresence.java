@@ -0,0 +1,161 @@
+package org.lantern.data;
+
+import java.io.Serializable;
+
+import org.lantern.state.Mode;
+
+/**
+ * Everything an available presence tells us about a Lantern instance.
+ *
+ * This is what Dao.processAvailablePresence needs to apply a presence to the
+ * user's entity group in a single transaction.
+ */
+public class AvailablePresence implements Serializable {
+    private static final long serialVersionUID = 4630912786013946185L;
+
+    private String userId;
+
+    private String instanceId;
+
+    private String resource;
+
+    private String countryCode;
+
+    private Mode mode;
+
+    private String name;
+
+    private String language;
+
+    /**
+     * The host and port on which this instance is listening, if it's giving.
+     */
+    private String listenHostAndPort;
+
+    /**
+     * The host and port of the fallback proxy this instance is using.
+     */
+    private String fallbackHostAndPort;
+
+    private boolean fallbackProxy;
+
+    private long directRequests;
+
+    private long directBytes;
+
+    private long requestsProxied;
+
+    private long bytesProxied;
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public void setUserId(String userId) {
+        this.userId = userId;
+    }
+
+    public String getInstanceId() {
+        return instanceId;
+    }
+
+    public void setInstanceId(String instanceId) {
+        this.instanceId = instanceId;
+    }
+
+    public String getResource() {
+        return resource;
+    }
+
+    public void setResource(String resource) {
+        this.resource = resource;
+    }
+
+    public String getCountryCode() {
+        return countryCode;
+    }
+
+    public void setCountryCode(String countryCode) {
+        this.countryCode = countryCode;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public void setMode(Mode mode) {
+        this.mode = mode;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getLanguage() {
+        return language;
+    }
+
+    public void setLanguage(String language) {
+        this.language = language;
+    }
+
+    public String getListenHostAndPort() {
+        return listenHostAndPort;
+    }
+
+    public void setListenHostAndPort(String listenHostAndPort) {
+        this.listenHostAndPort = listenHostAndPort;
+    }
+
+    public String getFallbackHostAndPort() {
+        return fallbackHostAndPort;
+    }
+
+    public void setFallbackHostAndPort(String fallbackHostAndPort) {
+        this.fallbackHostAndPort = fallbackHostAndPort;
+    }
+
+    public boolean isFallbackProxy() {
+        return fallbackProxy;
+    }
+
+    public void setFallbackProxy(boolean fallbackProxy) {
+        this.fallbackProxy = fallbackProxy;
+    }
+
+    public long getDirectRequests() {
+        return directRequests;
+    }
+
+    public void setDirectRequests(long directRequests) {
+        this.directRequests = directRequests;
+    }
+
+    public long getDirectBytes() {
+        return directBytes;
+    }
+
+    public void setDirectBytes(long directBytes) {
+        this.directBytes = directBytes;
+    }
+
+    public long getRequestsProxied() {
+        return requestsProxied;
+    }
+
+    public void setRequestsProxied(long requestsProxied) {
+        this.requestsProxied = requestsProxied;
+    }
+
+    public long getBytesProxied() {
+        return bytesProxied;
+    }
+
+    public void setBytesProxied(long bytesProxied) {
+        this.bytesProxied = bytesProxied;
+    }
+}
@@ -0,0 +1,127 @@
+package org.lantern.data;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Adds up counter deltas in this instance, so that we only send them to the
+ * memcache shards every few seconds instead of on every request.
+ *
+ * Counters like global.bytesEver are updated by nearly every presence, and
+ * this turns thousands of increments into a handful of memcache calls.
+ *
+ * Deltas are kept in a few stripes, chosen by thread, so that concurrent
+ * requests rarely contend for the same AtomicLong.  Nothing runs in the
+ * background; CounterFlushFilter flushes at the end of requests once
+ * FLUSH_SECONDS have passed.  Deltas that memcache fails to take are added
+ * back for the next flush.
+ *
+ * This is lossy in a way sending every delta right away is not.  An instance
+ * that goes idle holds on to its last deltas until its next request, and
+ * with automatic scaling App Engine shuts idle instances down without
+ * running our shutdown hook, so whatever they held is lost.  That's why this
+ * is off unless the org.lantern.counterFlushSeconds system property (in
+ * appengine-web.xml) is set to more than 0.
+ */
+public class CounterAccumulator {
+
+    private static final transient Logger log = Logger
+            .getLogger(CounterAccumulator.class.getName());
+
+    private static final int FLUSH_SECONDS =
+        Integer.getInteger("org.lantern.counterFlushSeconds", 0);
+
+    // Must be a power of two.
+    private static final int STRIPES = 8;
+
+    private static final ConcurrentMap<String, AtomicLong>[] stripes =
+        newStripes();
+
+    private static final AtomicLong lastFlush =
+        new AtomicLong(System.currentTimeMillis());
+
+    private CounterAccumulator() {}
+
+    static boolean isEnabled() {
+        return FLUSH_SECONDS > 0;
+    }
+
+    static void add(final Map<String, Long> deltas) {
+        final ConcurrentMap<String, AtomicLong> stripe = stripes[
+            (int) (Thread.currentThread().getId() & (STRIPES - 1))];
+        for (Map.Entry<String, Long> entry : deltas.entrySet()) {
+            final long delta = entry.getValue();
+            if (delta == 0) {
+                continue;
+            }
+            AtomicLong cell = stripe.get(entry.getKey());
+            if (cell == null) {
+                final AtomicLong fresh = new AtomicLong();
+                cell = stripe.putIfAbsent(entry.getKey(), fresh);
+                if (cell == null) {
+                    cell = fresh;
+                }
+            }
+            cell.addAndGet(delta);
+        }
+    }
+
+    /**
+     * Flush if FLUSH_SECONDS have passed since the last flush.  Only one of
+     * the requests that find this to be the case gets to do it.
+     */
+    public static void flushIfDue() {
+        if (!isEnabled()) {
+            return;
+        }
+        final long last = lastFlush.get();
+        final long now = System.currentTimeMillis();
+        if (now - last >= FLUSH_SECONDS * 1000L
+            && lastFlush.compareAndSet(last, now)) {
+            flush();
+        }
+    }
+
+    public static void flush() {
+        final Map<String, Long> deltas = new HashMap<String, Long>();
+        for (ConcurrentMap<String, AtomicLong> stripe : stripes) {
+            for (Map.Entry<String, AtomicLong> entry : stripe.entrySet()) {
+                final long delta = entry.getValue().getAndSet(0);
+                if (delta != 0) {
+                    final Long old = deltas.get(entry.getKey());
+                    deltas.put(entry.getKey(),
+                               old == null ? delta : old + delta);
+                }
+            }
+        }
+        if (deltas.isEmpty()) {
+            return;
+        }
+        log.info("Flushing " + deltas.size() + " counters.");
+        Map<String, Long> failed = deltas;
+        try {
+            failed = new ShardedCounterManager().incrementAll(deltas);
+        } finally {
+            if (!failed.isEmpty()) {
+                log.warning("Keeping " + failed.size()
+                            + " counters memcache didn't take for the next"
+                            + " flush.");
+                add(failed);
+            }
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static ConcurrentMap<String, AtomicLong>[] newStripes() {
+        final ConcurrentMap<String, AtomicLong>[] result =
+            new ConcurrentMap[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            result[i] = new ConcurrentHashMap<String, AtomicLong>();
+        }
+        return result;
+    }
+}
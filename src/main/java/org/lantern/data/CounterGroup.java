@@ -1,6 +1,9 @@
 package org.lantern.data;
 
+import java.util.Arrays;
 import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.logging.Logger;
 import java.util.Map;
@@ -13,11 +16,14 @@ import javax.jdo.annotations.PersistenceCapable;
 import javax.jdo.annotations.Persistent;
 import javax.jdo.annotations.PrimaryKey;
 
+import com.google.appengine.api.datastore.Blob;
 import com.google.appengine.api.datastore.Text;
 
 @PersistenceCapable(identityType = IdentityType.APPLICATION)
 public class CounterGroup implements Serializable {
     private static final long serialVersionUID = -8222330370813841050L;
+    // The key of the single group we used to keep; ShardedCounterManager
+    // now keys one group per partition of the counters off of it.
     public static final String singletonKey = "cg";
 
     private static final transient Logger log =
@@ -30,6 +36,44 @@ public class CounterGroup implements Serializable {
     @NotPersistent
     private HashMap<String, DatastoreCounter> counters = new HashMap<String, DatastoreCounter>();
 
+    // Bump this if the layout of encodedCounters ever changes.
+    private static final int ENCODING_VERSION = 2;
+
+    private static final int TIMED_FLAG = 1;
+
+    private static final int WINDOW_FLAG = 2;
+
+    /**
+     * Counter names are dotted paths made of a few hundred distinct segments
+     * (country codes, "nusers", "online"...), so we store each segment once
+     * and each name as the indices of its segments.
+     *
+     * The layout is a version byte, the number of segments, each segment as
+     * its UTF-8 length and bytes, the number of counters and then one record
+     * per counter: the number of segments in its name, their indices, a flags
+     * byte, its count, its number of shards and its number of retired shards
+     * (which version 1 didn't have).  If WINDOW_FLAG is set, this is followed
+     * by the counter's newest interval, the number of intervals we store and
+     * their counts, newest first.  All numbers are varints; counts are zigzag
+     * encoded because they may be negative.
+     */
+    @Persistent
+    private Blob encodedCounters;
+
+    /**
+     * The segments our counters' encoded records refer to, in the order we
+     * encode them.  We only ever append to this, so records stay valid.
+     */
+    @NotPersistent
+    private ArrayList<String> segments;
+
+    @NotPersistent
+    private HashMap<String, Integer> segmentIndices;
+
+    /**
+     * TRANSITION: how we persisted counters before encodedCounters.  Only
+     * read, and cleared as soon as we persist the group again.
+     */
     @Persistent
     private Text persistedCounters;
 
@@ -69,29 +113,120 @@ public class CounterGroup implements Serializable {
         this.lastUpdated = lastUpdated;
     }
 
+    Blob getEncodedCounters() {
+        return encodedCounters;
+    }
+
+    void setEncodedCounters(final Blob encodedCounters) {
+        this.encodedCounters = encodedCounters;
+    }
+
+    /**
+     * Encode our counters for the Datastore.
+     *
+     * Each counter keeps its last encoded record until it changes, so only
+     * the counters that changed since we restored the group are encoded anew.
+     */
     public void prepareForPersistence() {
-        StringBuilder sb = new StringBuilder(50000);
-        for (Map.Entry<String, DatastoreCounter> me : counters.entrySet()) {
-            DatastoreCounter counter = me.getValue();
-            sb.append(counter.getCounterName());
-            sb.append(":");
-            sb.append(counter.isTimed() ? 1 : 0);
-            sb.append(":");
-            sb.append(counter.getCount());
-            sb.append(":");
-            sb.append(counter.getShardCount());
-            sb.append(",");
-        }
-        String s = sb.toString();
-        persistedCounters = new Text(s);
-        log.info("Persisted string takes " + s.length() + " characters.");
+        if (segments == null) {
+            resetSegments();
+        }
+        final Buffer records = new Buffer(counters.size() * 8);
+        int encoded = 0;
+        for (DatastoreCounter counter : counters.values()) {
+            final byte[] record = counter.getEncoded();
+            if (record == null) {
+                final int start = records.length;
+                encode(counter, records);
+                counter.setEncoded(records.copy(start));
+                encoded++;
+            } else {
+                records.write(record);
+            }
+        }
+        final Buffer out = new Buffer(records.length + segments.size() * 8);
+        out.write(ENCODING_VERSION);
+        out.writeVarint(segments.size());
+        for (String segment : segments) {
+            final byte[] bytes = utf8(segment);
+            out.writeVarint(bytes.length);
+            out.write(bytes);
+        }
+        out.writeVarint(counters.size());
+        out.write(records.bytes, 0, records.length);
+        encodedCounters = new Blob(out.copy(0));
+        persistedCounters = null;
+        log.info("Persisted " + getNumCounters() + " counters (" + encoded
+                 + " changed) in " + encodedCounters.getBytes().length
+                 + " bytes.");
     }
 
     public void restore() {
-        if (persistedCounters == null) {
+        if (encodedCounters != null) {
+            decode(encodedCounters.getBytes());
+        } else if (persistedCounters != null) {
+            restoreText();
+        } else {
             log.info("Nothing to restore.");
             return;
         }
+        log.info("Got " + getNumCounters() + " counters.");
+    }
+
+    private void decode(final byte[] bytes) {
+        final int[] pos = {0};
+        final int version = bytes[pos[0]++];
+        if (version != 1 && version != ENCODING_VERSION) {
+            throw new RuntimeException("Unknown counter encoding: " + version);
+        }
+        resetSegments();
+        final int numSegments = (int) readVarint(bytes, pos);
+        for (int i = 0; i < numSegments; i++) {
+            final int length = (int) readVarint(bytes, pos);
+            addSegment(utf8(bytes, pos[0], length));
+            pos[0] += length;
+        }
+        final int n = (int) readVarint(bytes, pos);
+        final HashMap<String, DatastoreCounter> c
+            = new HashMap<String, DatastoreCounter>(n * 4 / 3 + 1);
+        final StringBuilder name = new StringBuilder(64);
+        for (int i = 0; i < n; i++) {
+            final int start = pos[0];
+            final int parts = (int) readVarint(bytes, pos);
+            name.setLength(0);
+            for (int j = 0; j < parts; j++) {
+                if (j > 0) {
+                    name.append('.');
+                }
+                name.append(segments.get((int) readVarint(bytes, pos)));
+            }
+            final int flags = bytes[pos[0]++];
+            final DatastoreCounter dc = new DatastoreCounter(
+                    name.toString(), (flags & TIMED_FLAG) != 0);
+            dc.setCount(readZigzag(bytes, pos));
+            dc.setShardCount((int) readVarint(bytes, pos));
+            if (version > 1) {
+                dc.setRetiredShards((int) readVarint(bytes, pos));
+            }
+            if ((flags & WINDOW_FLAG) != 0) {
+                final long newest = readVarint(bytes, pos);
+                final long[] counts = new long[(int) readVarint(bytes, pos)];
+                for (int j = 0; j < counts.length; j++) {
+                    counts[j] = readZigzag(bytes, pos);
+                }
+                dc.setWindow(new SlidingWindowCounter(newest, counts));
+            }
+            if (version == ENCODING_VERSION) {
+                final byte[] record = new byte[pos[0] - start];
+                System.arraycopy(bytes, start, record, 0, record.length);
+                dc.setEncoded(record);
+            }
+            c.put(dc.getCounterName(), dc);
+        }
+        counters = c;
+    }
+
+    private void restoreText() {
         StringTokenizer st = new StringTokenizer(persistedCounters.getValue(),
                                                  ",");
         HashMap<String, DatastoreCounter> c
@@ -108,6 +243,147 @@ public class CounterGroup implements Serializable {
             c.put(name, dc);
         }
         counters = c;
-        log.info("Got " + getNumCounters() + " counters.");
+    }
+
+    private void encode(final DatastoreCounter counter, final Buffer out) {
+        final String name = counter.getCounterName();
+        int parts = 1;
+        for (int i = name.indexOf('.'); i != -1; i = name.indexOf('.', i + 1)) {
+            parts++;
+        }
+        out.writeVarint(parts);
+        int start = 0;
+        for (int i = 0; i < parts; i++) {
+            int end = name.indexOf('.', start);
+            if (end == -1) {
+                end = name.length();
+            }
+            out.writeVarint(segmentIndex(name.substring(start, end)));
+            start = end + 1;
+        }
+        final SlidingWindowCounter window = counter.getWindow();
+        out.write((counter.isTimed() ? TIMED_FLAG : 0)
+                  | (window != null ? WINDOW_FLAG : 0));
+        out.writeZigzag(counter.getCount());
+        out.writeVarint(counter.getShardCount());
+        out.writeVarint(counter.getRetiredShards());
+        if (window != null) {
+            final long[] counts = window.getNewestFirst();
+            out.writeVarint(window.getNewest());
+            out.writeVarint(counts.length);
+            for (long count : counts) {
+                out.writeZigzag(count);
+            }
+        }
+    }
+
+    private void resetSegments() {
+        segments = new ArrayList<String>();
+        segmentIndices = new HashMap<String, Integer>();
+        // Records encoded against some other segment table are no good.
+        for (DatastoreCounter counter : counters.values()) {
+            counter.setEncoded(null);
+        }
+    }
+
+    private int segmentIndex(final String segment) {
+        final Integer index = segmentIndices.get(segment);
+        if (index != null) {
+            return index;
+        }
+        return addSegment(segment);
+    }
+
+    private int addSegment(final String segment) {
+        final int index = segments.size();
+        segments.add(segment);
+        segmentIndices.put(segment, index);
+        return index;
+    }
+
+    private static long readVarint(final byte[] bytes, final int[] pos) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final byte b = bytes[pos[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new RuntimeException("Malformed varint in counter group.");
+    }
+
+    private static byte[] utf8(final String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (final UnsupportedEncodingException e) {
+            throw new RuntimeException("No UTF-8?", e);
+        }
+    }
+
+    private static long readZigzag(final byte[] bytes, final int[] pos) {
+        final long zigzag = readVarint(bytes, pos);
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    private static String utf8(final byte[] bytes, final int offset,
+            final int length) {
+        try {
+            return new String(bytes, offset, length, "UTF-8");
+        } catch (final UnsupportedEncodingException e) {
+            throw new RuntimeException("No UTF-8?", e);
+        }
+    }
+
+    /**
+     * Unlike ByteArrayOutputStream, this lets us copy out a slice.
+     */
+    private static final class Buffer {
+        private byte[] bytes;
+
+        private int length;
+
+        Buffer(final int capacity) {
+            bytes = new byte[Math.max(capacity, 16)];
+        }
+
+        void write(final int b) {
+            ensure(1);
+            bytes[length++] = (byte) b;
+        }
+
+        void write(final byte[] b) {
+            write(b, 0, b.length);
+        }
+
+        void write(final byte[] b, final int offset, final int len) {
+            ensure(len);
+            System.arraycopy(b, offset, bytes, length, len);
+            length += len;
+        }
+
+        void writeVarint(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[length++] = (byte) value;
+        }
+
+        void writeZigzag(final long value) {
+            writeVarint((value << 1) ^ (value >> 63));
+        }
+
+        byte[] copy(final int start) {
+            return Arrays.copyOfRange(bytes, start, length);
+        }
+
+        private void ensure(final int extra) {
+            if (length + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes,
+                        Math.max(bytes.length * 2, length + extra));
+            }
+        }
     }
 }
@@ -0,0 +1,179 @@
+package org.lantern.data;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import javax.jdo.annotations.IdentityType;
+import javax.jdo.annotations.PersistenceCapable;
+import javax.jdo.annotations.Persistent;
+import javax.jdo.annotations.PrimaryKey;
+
+import com.google.appengine.api.datastore.Blob;
+
+/**
+ * What a single counter looked like over a single (UTC) day.
+ *
+ * We keep a sample per minute, the mean of each hour's samples and the mean
+ * of the day's hourly values, each column as packed longs.  Past their
+ * retention CounterHistoryManager drops the minutes, and later the hours, so
+ * old days cost a few bytes each.
+ */
+@PersistenceCapable(identityType = IdentityType.APPLICATION)
+public class CounterHistory {
+
+    public static final int MINUTES_PER_HOUR = 60;
+
+    public static final int HOURS_PER_DAY = 24;
+
+    public static final int MINUTES_PER_DAY = MINUTES_PER_HOUR * HOURS_PER_DAY;
+
+    public static final int SECONDS_PER_DAY = MINUTES_PER_DAY * 60;
+
+    /**
+     * Marks minutes, hours or days we have no value for.
+     */
+    public static final long MISSING = Long.MIN_VALUE;
+
+    @PrimaryKey
+    @Persistent
+    private String key;
+
+    @Persistent
+    private String counterName;
+
+    // in days since the epoch
+    @Persistent
+    private long day;
+
+    /**
+     * MINUTES_PER_DAY longs, or null once we dropped them.
+     */
+    @Persistent
+    private Blob minutes;
+
+    /**
+     * HOURS_PER_DAY longs, or null once we dropped them.
+     */
+    @Persistent
+    private Blob hours;
+
+    @Persistent
+    private long dayValue = MISSING;
+
+    public CounterHistory() {}
+
+    public CounterHistory(final String counterName, final long day) {
+        this.key = keyOf(counterName, day);
+        this.counterName = counterName;
+        this.day = day;
+    }
+
+    public static String keyOf(final String counterName, final long day) {
+        return counterName + " " + day;
+    }
+
+    public String getCounterName() {
+        return counterName;
+    }
+
+    public long getDay() {
+        return day;
+    }
+
+    /**
+     * @return the sample of each minute of the day, or null if we dropped
+     * them.
+     */
+    public long[] getMinutes() {
+        return unpack(minutes, MINUTES_PER_DAY);
+    }
+
+    /**
+     * @return the mean of each hour of the day, or null if we dropped them.
+     */
+    public long[] getHours() {
+        return unpack(hours, HOURS_PER_DAY);
+    }
+
+    public long getDayValue() {
+        return dayValue;
+    }
+
+    /**
+     * Record samples of consecutive minutes, and roll them up into the hours
+     * they fall in and into the day.  MISSING samples leave what we had.
+     *
+     * @param firstMinute the minute of the day of samples[0].
+     */
+    public void setMinutes(final int firstMinute, final long[] samples) {
+        long[] m = getMinutes();
+        if (m == null) {
+            // We only drop minutes of days long past, so these are late.
+            m = newColumn(MINUTES_PER_DAY);
+        }
+        for (int i = 0; i < samples.length; i++) {
+            if (samples[i] != MISSING) {
+                m[firstMinute + i] = samples[i];
+            }
+        }
+        minutes = pack(m);
+
+        long[] h = getHours();
+        if (h == null) {
+            h = newColumn(HOURS_PER_DAY);
+        }
+        final int lastHour =
+            (firstMinute + samples.length - 1) / MINUTES_PER_HOUR;
+        for (int hour = firstMinute / MINUTES_PER_HOUR; hour <= lastHour;
+             hour++) {
+            h[hour] = mean(m, hour * MINUTES_PER_HOUR, MINUTES_PER_HOUR);
+        }
+        hours = pack(h);
+        dayValue = mean(h, 0, HOURS_PER_DAY);
+    }
+
+    public void dropMinutes() {
+        minutes = null;
+    }
+
+    public void dropHours() {
+        hours = null;
+    }
+
+    /**
+     * @return the mean of the values that aren't MISSING, or MISSING if
+     * there are none.
+     */
+    static long mean(final long[] values, final int from, final int count) {
+        long sum = 0;
+        int n = 0;
+        for (int i = from; i < from + count; i++) {
+            if (values[i] != MISSING) {
+                sum += values[i];
+                n++;
+            }
+        }
+        return n == 0 ? MISSING : sum / n;
+    }
+
+    static long[] newColumn(final int length) {
+        final long[] column = new long[length];
+        Arrays.fill(column, MISSING);
+        return column;
+    }
+
+    private static Blob pack(final long[] values) {
+        final ByteBuffer buffer = ByteBuffer.allocate(values.length * 8);
+        buffer.asLongBuffer().put(values);
+        return new Blob(buffer.array());
+    }
+
+    private static long[] unpack(final Blob blob, final int length) {
+        if (blob == null) {
+            return null;
+        }
+        final long[] values = new long[length];
+        ByteBuffer.wrap(blob.getBytes()).asLongBuffer().get(values);
+        return values;
+    }
+}
@@ -0,0 +1,306 @@
+package org.lantern.data;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+import javax.jdo.JDOObjectNotFoundException;
+import javax.jdo.PersistenceManager;
+import javax.jdo.Query;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+/**
+ * Keeps the history of our counters.
+ *
+ * Every persistence cycle we sample the counters of each partition into a
+ * per-partition, per-hour buffer in memcache.  Once an hour is over, we write
+ * its samples to the CounterHistory of each counter for that day, so we only
+ * write each counter's history once an hour.  Like our counters, this is lossy
+ * if memcache evicts a buffer.
+ *
+ * When we write the last hour of a day, we drop the minutes of the days that
+ * are now MINUTE_RETENTION_DAYS old, and the hours of those that are
+ * HOUR_RETENTION_DAYS old.
+ */
+public class CounterHistoryManager {
+
+    private static final transient Logger log =
+        Logger.getLogger(CounterHistoryManager.class.getName());
+
+    public static final int MINUTE_RETENTION_DAYS = 7;
+
+    public static final int HOUR_RETENTION_DAYS = 92;
+
+    // The most days a single query reads.
+    public static final int MAX_QUERY_DAYS = 366;
+
+    private static final int SECONDS_PER_HOUR =
+        CounterHistory.MINUTES_PER_HOUR * 60;
+
+    private static final String BUFFER_PREFIX = "counterHistory ";
+
+    // How many finished hours we look back for buffers to write, in case
+    // persistence cycles were skipped; buffers expire soon after that.
+    private static final int FLUSH_HOURS = 2;
+
+    private static final int BUFFER_EXPIRATION_SECONDS =
+        (FLUSH_HOURS + 1) * SECONDS_PER_HOUR;
+
+    public enum Resolution {
+        minute(60, MINUTE_RETENTION_DAYS),
+        hour(SECONDS_PER_HOUR, HOUR_RETENTION_DAYS),
+        day(CounterHistory.SECONDS_PER_DAY, 0);
+
+        private final int seconds;
+
+        private final int retentionDays;
+
+        private Resolution(final int seconds, final int retentionDays) {
+            this.seconds = seconds;
+            this.retentionDays = retentionDays;
+        }
+
+        public int getSeconds() {
+            return seconds;
+        }
+
+        /**
+         * @return how many days, counting today, we keep values at this
+         * resolution for, or 0 if we keep them forever.
+         */
+        public int getRetentionDays() {
+            return retentionDays;
+        }
+    }
+
+    private final MemcacheService cache =
+        MemcacheServiceFactory.getMemcacheService();
+
+    /**
+     * Sample the counters of a partition.
+     *
+     * @param samples the value of each counter of the partition.
+     * @param now in epoch seconds.
+     */
+    public void record(final String partition,
+            final Map<String, Long> samples, final long now) {
+        final long hour = now / SECONDS_PER_HOUR;
+        final int minute = (int) (now / 60 % CounterHistory.MINUTES_PER_HOUR);
+        final String key = bufferKey(partition, hour);
+        @SuppressWarnings("unchecked")
+        HashMap<String, long[]> buffer =
+            (HashMap<String, long[]>) cache.get(key);
+        if (buffer == null) {
+            buffer = new HashMap<String, long[]>();
+        }
+        for (Map.Entry<String, Long> entry : samples.entrySet()) {
+            long[] minutes = buffer.get(entry.getKey());
+            if (minutes == null) {
+                minutes = CounterHistory.newColumn(
+                        CounterHistory.MINUTES_PER_HOUR);
+                buffer.put(entry.getKey(), minutes);
+            }
+            minutes[minute] = entry.getValue();
+        }
+        cache.put(key, buffer,
+                  Expiration.byDeltaSeconds(BUFFER_EXPIRATION_SECONDS));
+        for (long h = hour - FLUSH_HOURS; h < hour; h++) {
+            flush(partition, h);
+        }
+    }
+
+    /**
+     * Write the buffered samples of the given partition and hour, if any, to
+     * the Datastore.
+     */
+    private void flush(final String partition, final long hour) {
+        final String key = bufferKey(partition, hour);
+        @SuppressWarnings("unchecked")
+        final HashMap<String, long[]> buffer =
+            (HashMap<String, long[]>) cache.get(key);
+        if (buffer == null) {
+            return;
+        }
+        final long day = hour / CounterHistory.HOURS_PER_DAY;
+        final int hourOfDay = (int) (hour % CounterHistory.HOURS_PER_DAY);
+        final boolean lastHour =
+            hourOfDay == CounterHistory.HOURS_PER_DAY - 1;
+        final List<CounterHistory> toWrite = new ArrayList<CounterHistory>();
+        final PersistenceManager pm = PMF.get().getPersistenceManager();
+        try {
+            for (Map.Entry<String, long[]> entry : buffer.entrySet()) {
+                final String name = entry.getKey();
+                CounterHistory history = read(pm, name, day);
+                if (history == null) {
+                    history = new CounterHistory(name, day);
+                }
+                history.setMinutes(
+                        hourOfDay * CounterHistory.MINUTES_PER_HOUR,
+                        entry.getValue());
+                toWrite.add(history);
+                if (lastHour) {
+                    final CounterHistory pastMinutes =
+                        read(pm, name, day + 1 - MINUTE_RETENTION_DAYS);
+                    if (pastMinutes != null) {
+                        pastMinutes.dropMinutes();
+                        toWrite.add(pastMinutes);
+                    }
+                    final CounterHistory pastHours =
+                        read(pm, name, day + 1 - HOUR_RETENTION_DAYS);
+                    if (pastHours != null) {
+                        pastHours.dropHours();
+                        toWrite.add(pastHours);
+                    }
+                }
+            }
+            pm.makePersistentAll(toWrite);
+        } finally {
+            pm.close();
+        }
+        cache.delete(key);
+        log.info("Wrote history of " + buffer.size() + " counters of "
+                 + partition + " for hour " + hourOfDay + " of day " + day
+                 + ".");
+    }
+
+    /**
+     * @param from in epoch seconds, inclusive.
+     * @param to in epoch seconds, inclusive.
+     * @return the values of the given counter at the given resolution,
+     * keyed by the epoch second each minute, hour or day starts at.  Minutes
+     * and hours past their retention are left out, and so are hours that are
+     * still being buffered.  We look at MAX_QUERY_DAYS at most, the latest
+     * ones of the range.
+     */
+    public SortedMap<Long, Long> query(final String counterName,
+            final long from, final long to, final Resolution resolution) {
+        final SortedMap<Long, Long> result = new TreeMap<Long, Long>();
+        final long lastDay = to / CounterHistory.SECONDS_PER_DAY;
+        long firstDay = Math.max(from / CounterHistory.SECONDS_PER_DAY,
+                                 lastDay - MAX_QUERY_DAYS + 1);
+        if (resolution.getRetentionDays() > 0) {
+            final long today = System.currentTimeMillis() / 1000
+                / CounterHistory.SECONDS_PER_DAY;
+            firstDay = Math.max(firstDay,
+                                today - resolution.getRetentionDays() + 1);
+        }
+        final PersistenceManager pm = PMF.get().getPersistenceManager();
+        try {
+            for (CounterHistory history : read(pm, counterName, firstDay,
+                                               lastDay)) {
+                final long start =
+                    history.getDay() * CounterHistory.SECONDS_PER_DAY;
+                switch (resolution) {
+                case minute:
+                    add(result, history.getMinutes(), start, 60, from, to);
+                    break;
+                case hour:
+                    add(result, history.getHours(), start, SECONDS_PER_HOUR,
+                        from, to);
+                    break;
+                case day:
+                    add(result, new long[] { history.getDayValue() }, start,
+                        CounterHistory.SECONDS_PER_DAY, from, to);
+                    break;
+                }
+            }
+        } finally {
+            pm.close();
+        }
+        if (resolution == Resolution.minute) {
+            addBuffered(result, counterName, from, to);
+        }
+        return result;
+    }
+
+    /**
+     * Add the samples of the given counter that are still in memcache.
+     */
+    private void addBuffered(final SortedMap<Long, Long> result,
+            final String counterName, final long from, final long to) {
+        final String partition =
+            ShardedCounterManager.partitionOf(counterName);
+        final long lastHour = to / SECONDS_PER_HOUR;
+        final long firstHour = Math.max(from / SECONDS_PER_HOUR,
+            System.currentTimeMillis() / 1000 / SECONDS_PER_HOUR
+            - FLUSH_HOURS);
+        final List<String> keys = new ArrayList<String>();
+        for (long hour = firstHour; hour <= lastHour; hour++) {
+            keys.add(bufferKey(partition, hour));
+        }
+        final Map<String, Object> buffers = cache.getAll(keys);
+        for (long hour = firstHour; hour <= lastHour; hour++) {
+            @SuppressWarnings("unchecked")
+            final Map<String, long[]> buffer =
+                (Map<String, long[]>) buffers.get(bufferKey(partition, hour));
+            if (buffer != null) {
+                add(result, buffer.get(counterName), hour * SECONDS_PER_HOUR,
+                    60, from, to);
+            }
+        }
+    }
+
+    private static void add(final SortedMap<Long, Long> result,
+            final long[] values, final long start, final int step,
+            final long from, final long to) {
+        if (values == null) {
+            return;
+        }
+        for (int i = 0; i < values.length; i++) {
+            final long time = start + (long) i * step;
+            if (values[i] != CounterHistory.MISSING && time >= from
+                && time <= to) {
+                result.put(time, values[i]);
+            }
+        }
+    }
+
+    /**
+     * @return the histories the given counter has for the given days, in a
+     * single batch get.  On App Engine, a query on a list of keys is how JDO
+     * does that; getObjectsById gets one object at a time.
+     */
+    @SuppressWarnings("unchecked")
+    private static List<CounterHistory> read(final PersistenceManager pm,
+            final String counterName, final long firstDay,
+            final long lastDay) {
+        if (firstDay > lastDay) {
+            return new ArrayList<CounterHistory>();
+        }
+        final List<Key> keys = new ArrayList<Key>();
+        for (long day = firstDay; day <= lastDay; day++) {
+            keys.add(keyOf(counterName, day));
+        }
+        final Query query =
+            pm.newQuery(CounterHistory.class, ":keys.contains(key)");
+        return (List<CounterHistory>) query.execute(keys);
+    }
+
+    private static CounterHistory read(final PersistenceManager pm,
+            final String counterName, final long day) {
+        try {
+            return pm.getObjectById(CounterHistory.class,
+                                    keyOf(counterName, day));
+        } catch (JDOObjectNotFoundException e) {
+            return null;
+        }
+    }
+
+    private static Key keyOf(final String counterName, final long day) {
+        return KeyFactory.createKey(CounterHistory.class.getSimpleName(),
+                                    CounterHistory.keyOf(counterName, day));
+    }
+
+    private static String bufferKey(final String partition, final long hour) {
+        return BUFFER_PREFIX + partition + " " + hour;
+    }
+}
@@ -0,0 +1,86 @@
+package org.lantern.data;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An immutable snapshot of what we need to know about the counters in a
+ * group to increment them: their names, whether they are timed and how many
+ * shards they have.
+ *
+ * ShardedCounterManager shares these across all requests this instance
+ * serves, so incrementing a counter doesn't take fetching and deserializing
+ * its whole CounterGroup.
+ */
+final class CounterMetadata {
+
+    /**
+     * What we know of a single counter, including the memcache keys we
+     * increment it through, so building them doesn't cost every increment.
+     */
+    static final class Counter {
+        private final int shardCount;
+
+        private final boolean timed;
+
+        private final String[] shardKeys;
+
+        private final String updatesKey;
+
+        private Counter(final DatastoreCounter counter) {
+            final String name = counter.getCounterName();
+            shardCount = counter.getShardCount();
+            timed = counter.isTimed();
+            shardKeys = new String[Math.max(shardCount, 0)];
+            for (int i = 0; i < shardKeys.length; i++) {
+                shardKeys[i] = ShardedCounterManager.shardKey(name, i);
+            }
+            updatesKey = ShardedCounterManager.updatesKey(name);
+        }
+
+        int getShardCount() {
+            return shardCount;
+        }
+
+        boolean isTimed() {
+            return timed;
+        }
+
+        String getShardKey(final int shard) {
+            return shardKeys[shard];
+        }
+
+        String getUpdatesKey() {
+            return updatesKey;
+        }
+    }
+
+    /**
+     * The value of the group's version key in memcache when we took this
+     * snapshot.
+     */
+    private final long version;
+
+    private final Map<String, Counter> counters;
+
+    CounterMetadata(final long version, final CounterGroup group) {
+        this.version = version;
+        final Map<String, Counter> c = new HashMap<String, Counter>();
+        for (DatastoreCounter counter : group.getAllCounters().values()) {
+            c.put(counter.getCounterName(), new Counter(counter));
+        }
+        this.counters = Collections.unmodifiableMap(c);
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the given counter, or null if there is no such counter.
+     */
+    Counter getCounter(final String name) {
+        return counters.get(name);
+    }
+}
@@ -5,14 +5,15 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.logging.Logger;
 
 import org.apache.commons.lang3.StringUtils;
 import org.lantern.CensoredUtils;
 import org.lantern.FallbackProxyLauncher;
-import org.lantern.JsonUtils;
 import org.lantern.LanternControllerConstants;
 import org.lantern.MandrillEmailer;
 import org.lantern.admin.PendingInvites;
@@ -75,7 +76,52 @@ public class Dao extends DAOBase {
     private static final String GIVE = Mode.give.toString();
     private static final String GET = Mode.get.toString();
     private static final String BPS = "bps";
-    private static final String GLOBAL = "global";
+    private static final String BPS_FIVE_MINUTES = "bps5m";
+    private static final String BPS_ONE_HOUR = "bps1h";
+    public static final String GLOBAL = "global";
+    public static final String COUNTRIES = "countries";
+
+    // The layout of the stats document: totals at the top level, and these
+    // metrics of GLOBAL and of each country.  The five minute and one hour
+    // rates are those of the bps counter; bps itself has the one minute rate.
+    private static final StatsData.Layout STATS_LAYOUT = new StatsData.Layout(
+            new String[] { REQUESTS_PROXIED, DIRECT_BYTES, DIRECT_REQUESTS,
+                           CENSORED_USERS, UNCENSORED_USERS },
+            new String[] { BPS, BPS_FIVE_MINUTES, BPS_ONE_HOUR, BYTES_EVER,
+                           dottedPath(NUSERS, ONLINE), dottedPath(NUSERS, EVER),
+                           dottedPath(NPEERS, ONLINE, GIVE),
+                           dottedPath(NPEERS, ONLINE, GET),
+                           dottedPath(NPEERS, EVER, GIVE),
+                           dottedPath(NPEERS, EVER, GET) },
+            countries);
+
+    // For each scope and metric of STATS_LAYOUT, the counter we read it from.
+    private static final String[][] STATS_COUNTERS;
+
+    // For each metric of STATS_LAYOUT, 0 to read the count of its counter, or
+    // the window (in seconds) to read the rate of it over.
+    private static final int[] STATS_WINDOWS;
+
+    static {
+        final int metrics = STATS_LAYOUT.getMetricCount();
+        STATS_WINDOWS = new int[metrics];
+        for (int i = 0; i < metrics; i++) {
+            if (STATS_LAYOUT.getMetric(i).equals(BPS_FIVE_MINUTES)) {
+                STATS_WINDOWS[i] = SlidingWindowCounter.FIVE_MINUTES;
+            } else if (STATS_LAYOUT.getMetric(i).equals(BPS_ONE_HOUR)) {
+                STATS_WINDOWS[i] = SlidingWindowCounter.ONE_HOUR;
+            }
+        }
+        STATS_COUNTERS = new String[STATS_LAYOUT.getScopeCount()][metrics];
+        for (int scope = 0; scope < STATS_COUNTERS.length; scope++) {
+            for (int i = 0; i < metrics; i++) {
+                final String metric = STATS_WINDOWS[i] == 0
+                    ? STATS_LAYOUT.getMetric(i) : BPS;
+                STATS_COUNTERS[scope][i] =
+                    dottedPath(STATS_LAYOUT.getScope(scope), metric);
+            }
+        }
+    }
 
     private final ShardedCounterManager counterManager = new ShardedCounterManager();
 
@@ -83,6 +129,23 @@ public class Dao extends DAOBase {
 
     static final int TXN_RETRIES = 10;
 
+    private static final int ACTIVITY_BATCH_SIZE = 500;
+
+    // How long flushUserActivity starts new batches for, well within the
+    // deadline of a cron request.
+    private static final long ACTIVITY_FLUSH_MILLIS = 5 * 60 * 1000L;
+
+    private static final String FALLBACK_PROCESSED_PREFIX =
+        "fallbackHostAndPort ";
+
+    // Long enough to spare most presences the fallback lookup, short enough
+    // that fallback changes made some other way are eventually overridden.
+    private static final int FALLBACK_PROCESSED_SECONDS = 60 * 60;
+
+    // How long we wait before looking again for a fallback proxy we didn't
+    // find, which may just not have registered yet.
+    private static final int FALLBACK_NOT_FOUND_SECONDS = 60;
+
     static {
         ObjectifyService.register(LanternUser.class);
         ObjectifyService.register(LanternInstance.class);
@@ -90,6 +153,7 @@ public class Dao extends DAOBase {
         ObjectifyService.register(PermanentLogEntry.class);
         ObjectifyService.register(TrustRelationship.class);
         ObjectifyService.register(LanternVersion.class);
+        ObjectifyService.register(FallbackProxyAddress.class);
         
         // Precreate all counters, if necessary
         ArrayList<String> counters = new ArrayList<String>();
@@ -130,42 +194,6 @@ public class Dao extends DAOBase {
         return ofy().query(LanternUser.class);
     }
 
-    public void setInstanceAvailable(final String userId,
-            final String instanceId, final String countryCode, final Mode mode,
-            final String resource, final String listenHostAndPort,
-            final boolean isFallbackProxy) {
-
-        Boolean result = new RetryingTransaction<Boolean>() {
-            @Override
-            protected Boolean run(Objectify ofy) {
-                final List<String> countersToUpdate = setInstanceAvailable(
-                        ofy, userId, instanceId, countryCode, mode, resource,
-                        listenHostAndPort, isFallbackProxy);
-                ofy.getTxn().commit();
-                // We only actually update the counters when we know the
-                // transaction succeeded.  Since these affect the memcache
-                // rather than the Datastore, there would be no way to roll
-                // them back should this transaction fail.
-                log.info("Transaction successful.");
-                for (String counter : countersToUpdate) {
-                    if (counter.startsWith("-")) {
-                        counter = counter.substring(1);
-                        log.info("Decrementing counter " + counter);
-                        decrementCounter(counter);
-                    } else {
-                        log.info("Incrementing counter " + counter);
-                        incrementCounter(counter);
-                    }
-                }
-                return true;
-            }
-        }.run();
-
-        if (result == null) {
-            log.warning("Too much contention; giving up!");
-        }
-    }
-
     public void createOrUpdateLanternVersion(final LanternVersion lanternVersion) {
 
         Boolean result = new RetryingTransaction<Boolean>() {
@@ -192,36 +220,37 @@ public class Dao extends DAOBase {
 
 
     /**
-     * @return a list of the counters that should be incremented as a
-     * result of this instance having become available.
+     * Apply to the given user and instance the changes that follow from the
+     * instance having become available.
+     *
+     * Nothing is saved here; that is left to the caller.
+     *
+     * @param instance the instance as found in the datastore, or null if we
+     * have never seen it before.
+     * @param counters the counters that should be incremented (or decremented,
+     * if prefixed with '-') as a result of this are added here.
+     * @return the instance to save, or null if nothing changed.
      */
-    public List<String> setInstanceAvailable(Objectify ofy,
-            String userId, final String instanceId, final String countryCode,
-            final Mode mode, final String resource, String listenHostAndPort,
-            boolean isFallbackProxy) {
+    private LanternInstance applyInstanceAvailable(Objectify ofy,
+            LanternUser user, LanternInstance instance,
+            final String instanceId, final String countryCode,
+            final Mode mode, final String resource,
+            final String listenHostAndPort, final boolean isFallbackProxy,
+            final List<String> counters) {
 
+        String userId = user.getId();
         String modeStr = mode.toString();
-        LanternUser user = ofy.find(LanternUser.class, userId);
-
-        Key<LanternUser> parentKey = new Key<LanternUser>(LanternUser.class,
-                userId);
-
-        Key<LanternInstance> key = new Key<LanternInstance>(parentKey,
-                LanternInstance.class, instanceId);
-
-        LanternInstance instance = ofy.find(key);
 
         if (instance != null
             && StringUtils.equals(instance.getResource(), resource)) {
             log.info(String.format("We already knew '%1$s' was available",
                                    instanceId));
-            return Collections.emptyList();
+            return null;
         }
 
-        ArrayList<String> counters = new ArrayList<String>();
         boolean isNewInstance = instance == null;
         if (isNewInstance) {
-            instance = new LanternInstance(instanceId, parentKey);
+            instance = new LanternInstance(instanceId, getUserKey(userId));
         }
 
         // Update properties common to new and updated instances
@@ -265,9 +294,7 @@ public class Dao extends DAOBase {
         }
 
         instance.setLastUpdated(new Date());
-        ofy.put(instance);
-
-        return counters;
+        return instance;
     }
 
     /**
@@ -277,14 +304,14 @@ public class Dao extends DAOBase {
      * </p>
      * 
      * <p>
-     * Note - the instance is not saved with a call to put() because that is
-     * handled by the calling function.
+     * Note - neither the user nor the instance are saved with a call to put()
+     * because that is handled by the calling function.
      * </p>
      */
     private void updateStatsForNewlyAvailableInstance(Objectify ofy,
             LanternUser user, LanternInstance instance,
             final String countryCode, final Mode mode,
-            ArrayList<String> counters) {
+            List<String> counters) {
         //handle the online counters
         String modeStr = mode.toString();
         counters.add(dottedPath(countryCode, NPEERS, ONLINE, modeStr));
@@ -297,118 +324,416 @@ public class Dao extends DAOBase {
         if (!user.countrySeen(countryCode)){
             counters.add(dottedPath(countryCode, NUSERS, EVER));
         }
-        //notice that we check for any signed in before we set this instance
-        //available
-
-        //we can do an ancestor query to figure out how many remaining
-        //instances there are
-
-        Query<LanternInstance> query = signedInInstanceQuery(ofy, user.getId());
-        boolean anyInstancesSignedIn = query.count() > 0;
-
-        if (!anyInstancesSignedIn) {
+        trackAvailableInstances(ofy, user);
+        if (user.addAvailableInstance(instance.getId())) {
             counters.add(dottedPath(GLOBAL, NUSERS, ONLINE));
             counters.add(dottedPath(countryCode, NUSERS, ONLINE));
         }
         instance.setCurrentCountry(countryCode);
         instance.setMode(mode);
         instance.setAvailable(true);
-        ofy.put(user);
         log.info("Finished updating datastore...");
     }
 
     /**
-     * Update fallbackProxyUserId and fallbackProxy if we got a non-default
-     * fallbackProxyHostAndPort.
+     * Apply everything an available presence tells us in a single
+     * transaction on the user's entity group.
+     *
+     * This registers the instance as available, pairs the user with the
+     * fallback proxy they report (or, for fallback proxies, moves the legacy
+     * installer location to the instance) and marks the user as signed in,
+     * all with a single load and save of the LanternUser.  Counters are only
+     * updated once the transaction has committed.
+     *
+     * The user's last access time and stats go to the UserActivityBuffer
+     * instead, so we only write to the datastore when something else about
+     * the user or instance changed.
+     *
+     * @return the number of datastore round trips this presence took.
      */
-    public void processFallbackProxyHostAndPort(final String userId,
-                                                final String hostAndPort) {
-        log.info("Processing host:port for " + userId);
+    public int processAvailablePresence(final AvailablePresence presence) {
+        final String userId = presence.getUserId();
+        final String instanceId = presence.getInstanceId();
+        final String countryCode = presence.getCountryCode();
+        final int[] roundTrips = {0};
+
+        // We don't need the fallback lookup to be consistent with the user
+        // entry, so we keep it out of the transaction.
+        final String fallbackHostAndPort = presence.getFallbackHostAndPort();
+        boolean lookUpFallback = !presence.isFallbackProxy()
+            && isFallbackHostAndPortUsable(fallbackHostAndPort)
+            && !isFallbackHostAndPortProcessed(userId, fallbackHostAndPort);
+        LanternInstance fallbackInstance = null;
+        if (lookUpFallback) {
+            fallbackInstance = findFallbackProxy(userId, fallbackHostAndPort,
+                                                 roundTrips);
+        }
+        final LanternInstance fallback = fallbackInstance;
+        final boolean[] instanceSaved = {false};
+
+        final Map<String, Long> counters = new HashMap<String, Long>();
+        final boolean[] newlySignedIn = {false};
+        final boolean[] userCreated = {false};
+
+        RetryingTransaction<Boolean> txn = new RetryingTransaction<Boolean>() {
+            @Override
+            protected Boolean run(Objectify ofy) {
+                // In case we are retrying.
+                counters.clear();
+                newlySignedIn[0] = false;
+                userCreated[0] = false;
+
+                Key<LanternUser> userKey = getUserKey(userId);
+                Key<LanternInstance> instanceKey
+                    = getInstanceKey(userId, instanceId);
+                Map<Key<Object>, Object> found
+                    = ofy.<Object>get(userKey, instanceKey);
+                roundTrips[0] += 1;
+                LanternUser user = (LanternUser) found.get(userKey);
+                LanternInstance instance
+                    = (LanternInstance) found.get(instanceKey);
+
+                boolean isUserNew = (user == null);
+                if (isUserNew) {
+                    log.info("Could not find user!!");
+                    user = new LanternUser(userId);
+                    user.setName(presence.getName());
+                    userCreated[0] = true;
+                }
+                // Whether we need to save the user even if the instance
+                // didn't change.
+                boolean userChanged = isUserNew;
+
+                List<String> instanceCounters = new ArrayList<String>();
+                LanternInstance changed = applyInstanceAvailable(ofy, user,
+                        instance, instanceId, countryCode,
+                        presence.getMode(), presence.getResource(),
+                        presence.getListenHostAndPort(),
+                        presence.isFallbackProxy(), instanceCounters);
+                addCounters(counters, instanceCounters);
+
+                boolean fpUserChanged = false;
+                if (presence.isFallbackProxy()) {
+                    LanternInstance current
+                        = (changed != null) ? changed : instance;
+                    String insloc = user.getInstallerLocation();
+                    if (insloc != null && current != null) {
+                        log.info("Moving legacy installer location from "
+                                 + userId + " to fallback proxy "
+                                 + instanceId);
+                        user.setInstallerLocation(null);
+                        current.setInstallerLocation(insloc);
+                        changed = current;
+                        userChanged = true;
+                    }
+                } else if (fallback != null) {
+                    fpUserChanged = applyFallbackProxyUserId(user, fallback);
+                    boolean fpChanged = applyFallbackProxy(user, fallback);
+                    userChanged |= fpUserChanged || fpChanged;
+                }
+
+                if (isUserNew) {
+                    addNewUserCounters(counters, countryCode);
+                }
+
+                if (!user.isEverSignedIn()) {
+                    log.info("This is a new user.");
+                    user.setEverSignedIn(true);
+                    addCounter(counters, dottedPath(GLOBAL, NUSERS, EVER), 1);
+                    newlySignedIn[0] = true;
+                    userChanged = true;
+                }
+
+                instanceSaved[0] = changed != null;
+                if (changed != null) {
+                    ofy.put(user, changed);
+                } else if (userChanged) {
+                    ofy.put(user);
+                } else {
+                    log.info("Nothing to save.");
+                    return false;
+                }
+                roundTrips[0] += 1;
+                ofy.getTxn().commit();
+                roundTrips[0] += 1;
+                log.info("Transaction successful.");
+                return fpUserChanged;
+            }
+        };
+        Boolean updateInvites = txn.run();
+        if (txn.failed()) {
+            throw new RuntimeException("Too much contention!");
+        }
+
+        // We only actually update the counters when we know the
+        // transaction succeeded.  Since these affect the memcache
+        // rather than the Datastore, there would be no way to roll
+        // them back should this transaction fail.
+        recordStats(counters, presence);
+        updateCounters(counters);
+
+        if (lookUpFallback) {
+            fallbackHostAndPortProcessed(userId, fallbackHostAndPort,
+                                         fallback != null);
+        }
+        if (presence.isFallbackProxy() && instanceSaved[0]) {
+            registerFallbackProxyAddress(presence.getListenHostAndPort(),
+                                         getInstanceKey(userId, instanceId));
+        }
+        if (userCreated[0]) {
+            InvitedCache.invalidate(userId);
+        }
+        if (newlySignedIn[0]) {
+            MandrillEmailer.addEmailToUsersList(userId,
+                                                presence.getLanguage());
+        }
+        if (updateInvites) {
+            updateInvitesToFallbackBalancingScheme(userId);
+        }
+        return roundTrips[0];
+    }
+
+    /**
+     * Add the stats in this presence to the counters and to the user's
+     * buffered totals.  This doesn't touch the datastore.
+     */
+    public void recordStats(final AvailablePresence presence) {
+        final Map<String, Long> counters = new HashMap<String, Long>();
+        recordStats(counters, presence);
+        updateCounters(counters);
+    }
+
+    /**
+     * Like recordStats(presence), but add to the given counter deltas rather
+     * than updating the counters.
+     */
+    private void recordStats(final Map<String, Long> counters,
+            final AvailablePresence presence) {
+        addStatsCounters(counters, presence.getCountryCode(),
+                presence.getDirectRequests(), presence.getDirectBytes(),
+                presence.getRequestsProxied(), presence.getBytesProxied());
+        UserActivityBuffer.recordStats(presence.getUserId(),
+                presence.getDirectRequests(), presence.getDirectBytes(),
+                presence.getRequestsProxied(), presence.getBytesProxied());
+    }
+
+    private boolean isFallbackHostAndPortUsable(final String hostAndPort) {
         if (StringUtils.isBlank(hostAndPort)) {
             log.info("No hostAndPort.");
-            return;
+            return false;
         }
         if (LanternControllerConstants.DEFAULT_FALLBACK_HOST_AND_PORT
                 .equals(hostAndPort)) {
             // This may be caused by a wiped ~/.lantern folder.  Don't
             // treat this as a valid fallbackProxyUserId.
             log.info("Ignoring default fallback.");
-            return;
+            return false;
         }
+        return true;
+    }
 
-        Boolean updateInvites = new RetryingTransaction<Boolean>() {
-            @Override
-            protected Boolean run(Objectify txnOfy) {
-                LanternUser user = txnOfy.find(LanternUser.class, userId);
-
-                // The only point of the transaction is to protect the read
-                // and write of the user entry, and to make sure that we only
-                // update invites once.  We don't need to include the query
-                // in the transaction for this.
-                Objectify queryOfy = ofy();
-                List<LanternInstance> matches
-                    = queryOfy.query(LanternInstance.class)
-                        .filter("listenHostAndPort =", hostAndPort).list();
-                if (matches.size() == 0) {
-                    logPermanently("fallbackNotFound:" + userId,
-                                   userId + "'s fallback host and port "
-                                   + hostAndPort
-                                   + " don't match any fallback proxy.");
-                    return false;
-                } else if (matches.size() > 1) {
-                    log.severe(matches.size() + "instances found with ip:port"
-                               + hostAndPort + "!");
-                    // Bail rather than pair user with someone they don't
-                    // trust.
-                    return false;
-                }
+    /**
+     * @param roundTrips the datastore round trips we take are added to
+     * roundTrips[0].
+     * @return the fallback proxy listening at hostAndPort, or null if there
+     * is no such proxy we would pair userId with.
+     */
+    private LanternInstance findFallbackProxy(final String userId,
+            final String hostAndPort, final int[] roundTrips) {
+        final Objectify ofy = ofy();
+        LanternInstance instance = null;
+        FallbackProxyAddress address
+            = ofy.find(FallbackProxyAddress.class, hostAndPort);
+        roundTrips[0] += 1;
+        if (address != null && address.isConflicted()) {
+            log.info("Conflicting claims on " + hostAndPort
+                     + "; querying.");
+        } else if (address != null) {
+            instance = ofy.find(address.getInstance());
+            roundTrips[0] += 1;
+            if (instance != null && !hostAndPort.equals(
+                    instance.getListenHostAndPort())) {
+                log.info("Stale address " + hostAndPort + " for "
+                         + instance.getId());
+                instance = null;
+            }
+        }
+        if (instance == null) {
+            instance = queryFallbackProxy(userId, hostAndPort);
+            roundTrips[0] += 1;
+            if (instance == null) {
+                return null;
+            }
+            // The query found no other instance at this address, so this
+            // also clears any conflict.
+            ofy.put(new FallbackProxyAddress(hostAndPort,
+                    getInstanceKey(instance.getUser(), instance.getId())));
+            roundTrips[0] += 1;
+        }
 
-                LanternInstance instance = matches.get(0);
+        if (instance.isFallbackProxyShutdown()) {
+            logPermanently("obsoleteHostPort:" + userId,
+                           userId + " has obsolete fallback proxy "
+                           + instance.getId() + " of user "
+                           + instance.getUser());
+            return null;
+        }
+        return instance;
+    }
 
-                if (instance.isFallbackProxyShutdown()) {
-                    logPermanently("obsoleteHostPort:" + userId,
-                                   userId + " has obsolete fallback proxy "
-                                   + instance.getId() + " of user "
-                                   + instance.getUser());
-                    return false;
-                }
+    /**
+     * TRANSITION: look for a fallback proxy that registered before we kept
+     * FallbackProxyAddresses, which we need to do at most once per user and
+     * FALLBACK_PROCESSED_SECONDS (or FALLBACK_NOT_FOUND_SECONDS, while we
+     * find nothing).  We also do this for conflicted addresses.
+     */
+    private LanternInstance queryFallbackProxy(final String userId,
+                                               final String hostAndPort) {
+        List<LanternInstance> matches
+            = ofy().query(LanternInstance.class)
+                .filter("listenHostAndPort =", hostAndPort).list();
+        if (matches.size() == 0) {
+            logPermanently("fallbackNotFound:" + userId,
+                           userId + "'s fallback host and port "
+                           + hostAndPort
+                           + " don't match any fallback proxy.");
+            return null;
+        } else if (matches.size() > 1) {
+            log.severe(matches.size() + "instances found with ip:port"
+                       + hostAndPort + "!");
+            // Bail rather than pair user with someone they don't
+            // trust.
+            return null;
+        }
+        return matches.get(0);
+    }
 
-                String oldFpuid = user.getFallbackProxyUserId();
-                String newFpuid = instance.getUser();
-                boolean fpUserChanged = !newFpuid.equals(oldFpuid)
-                                        // If a user is their own fallback
-                                        // user, we don't override that.
-                                        && !userId.equals(oldFpuid);
-                if (fpUserChanged) {
-                    user.setFallbackProxyUserId(newFpuid);
-                    log.info("Set " + userId + "'s fallbackProxyUserId to "
-                             + newFpuid + " (was " + oldFpuid + ")");
+    /**
+     * Point hostAndPort at the given instance, unless some other instance
+     * already listens there, in which case we mark the address conflicted.
+     *
+     * We check and write the address in a transaction, so that of two
+     * instances claiming it at once, the one that loses sees the other's
+     * claim on retrying.
+     */
+    private void registerFallbackProxyAddress(final String hostAndPort,
+            final Key<LanternInstance> instance) {
+        if (StringUtils.isBlank(hostAndPort)) {
+            return;
+        }
+        RetryingTransaction<Void> txn = new RetryingTransaction<Void>() {
+            @Override
+            protected Void run(Objectify ofy) {
+                final FallbackProxyAddress existing
+                    = ofy.find(FallbackProxyAddress.class, hostAndPort);
+                if (existing != null && existing.isConflicted()) {
+                    // Only findFallbackProxy clears this, once it has checked
+                    // that no one else listens here.
+                    log.warning("Not registering conflicted " + hostAndPort
+                                + " for " + instance);
+                    return null;
                 }
-
-                Key<LanternInstance> oldFpKey = user.getFallbackProxy();
-                Key<LanternInstance> newFpKey
-                    = getInstanceKey(newFpuid, instance.getId());
-                boolean fpChanged = !newFpKey.equals(oldFpKey);
-                if (fpChanged) {
-                    user.setFallbackProxy(newFpKey);
-                    log.info("Set " + userId + "'s fallbackProxy to "
-                             + newFpKey + " (was " + oldFpKey + ")");
+                if (existing != null
+                    && instance.equals(existing.getInstance())) {
+                    log.info(hostAndPort + " is already registered for "
+                             + instance);
+                    return null;
                 }
-
-                if (fpUserChanged || fpChanged) {
-                    txnOfy.put(user);
-                    txnOfy.getTxn().commit();
+                if (existing != null
+                    && isListeningOn(existing.getInstance(), hostAndPort)) {
+                    // Bail rather than pair users with someone they don't
+                    // trust.
+                    log.severe(instance + " claims " + hostAndPort
+                               + ", which " + existing.getInstance()
+                               + " listens on!");
+                    existing.setConflicted(true);
+                    ofy.put(existing);
+                    ofy.getTxn().commit();
+                    return null;
                 }
-
-                return fpUserChanged;
+                log.info("Registering " + hostAndPort + " for " + instance);
+                ofy.put(new FallbackProxyAddress(hostAndPort, instance));
+                ofy.getTxn().commit();
+                return null;
             }
-        }.run();
+        };
+        txn.run();
+        if (txn.failed()) {
+            log.warning("Too much contention; could not register "
+                        + hostAndPort + " for " + instance);
+        }
+    }
 
-        if (updateInvites == null) {
-            log.warning("Transaction failed!");
-        } else if (updateInvites) {
-            updateInvitesToFallbackBalancingScheme(userId);
+    /**
+     * The instance is in another entity group than its address, so we read
+     * it outside of the address' transaction.
+     */
+    private boolean isListeningOn(final Key<LanternInstance> instance,
+            final String hostAndPort) {
+        final LanternInstance owner = ofy().find(instance);
+        return owner != null
+            && hostAndPort.equals(owner.getListenHostAndPort());
+    }
+
+    /**
+     * @return whether we have recently applied this fallback host and port
+     * to this user, or found that there is nothing to apply yet.
+     */
+    private boolean isFallbackHostAndPortProcessed(final String userId,
+            final String hostAndPort) {
+        MemcacheService cache = MemcacheServiceFactory.getMemcacheService();
+        return hostAndPort.equals(
+                cache.get(FALLBACK_PROCESSED_PREFIX + userId));
+    }
+
+    /**
+     * @param found whether there was a fallback proxy to apply; if not, we
+     * look again soon.
+     */
+    private void fallbackHostAndPortProcessed(final String userId,
+            final String hostAndPort, final boolean found) {
+        MemcacheService cache = MemcacheServiceFactory.getMemcacheService();
+        cache.put(FALLBACK_PROCESSED_PREFIX + userId, hostAndPort,
+                  Expiration.byDeltaSeconds(found
+                      ? FALLBACK_PROCESSED_SECONDS
+                      : FALLBACK_NOT_FOUND_SECONDS));
+    }
+
+    /**
+     * @return whether the user's fallbackProxyUserId changed.
+     */
+    private boolean applyFallbackProxyUserId(LanternUser user,
+                                             LanternInstance instance) {
+        String userId = user.getId();
+        String oldFpuid = user.getFallbackProxyUserId();
+        String newFpuid = instance.getUser();
+        boolean fpUserChanged = !newFpuid.equals(oldFpuid)
+                                // If a user is their own fallback
+                                // user, we don't override that.
+                                && !userId.equals(oldFpuid);
+        if (fpUserChanged) {
+            user.setFallbackProxyUserId(newFpuid);
+            log.info("Set " + userId + "'s fallbackProxyUserId to "
+                     + newFpuid + " (was " + oldFpuid + ")");
+        }
+        return fpUserChanged;
+    }
+
+    /**
+     * @return whether the user's fallbackProxy changed.
+     */
+    private boolean applyFallbackProxy(LanternUser user,
+                                       LanternInstance instance) {
+        Key<LanternInstance> oldFpKey = user.getFallbackProxy();
+        Key<LanternInstance> newFpKey
+            = getInstanceKey(instance.getUser(), instance.getId());
+        boolean fpChanged = !newFpKey.equals(oldFpKey);
+        if (fpChanged) {
+            user.setFallbackProxy(newFpKey);
+            log.info("Set " + user.getId() + "'s fallbackProxy to "
+                     + newFpKey + " (was " + oldFpKey + ")");
         }
+        return fpChanged;
     }
 
     /** Update invites for this user so they're parented to its
@@ -629,6 +954,7 @@ public class Dao extends DAOBase {
             user.setEverSignedIn(true);
             user.setSponsor("lanternfriend@gmail.com");
             ofy.put(user);
+            InvitedCache.invalidate(user.getId());
             log.info("createInitialUser succeeded.");
         }
     }
@@ -667,6 +993,7 @@ public class Dao extends DAOBase {
             throw new RuntimeException(
                     "Transaction failed trying to create " + inviteeEmail);
         }
+        InvitedCache.invalidate(inviteeEmail);
         return invitee;
     }
 
@@ -690,163 +1017,265 @@ public class Dao extends DAOBase {
     }
 
     public boolean isInvited(final String email) {
+        final Boolean cached = InvitedCache.get(email);
+        if (cached != null) {
+            return cached;
+        }
         final Objectify ofy = ofy();
         final LanternUser user = ofy.find(LanternUser.class, email);
-        return user != null;
+        final boolean invited = user != null;
+        InvitedCache.put(email, invited);
+        return invited;
+    }
+
+    /**
+     * @return a summary of how well the isInvited cache is doing in this
+     * instance.
+     */
+    public String getInvitedCacheStats() {
+        return InvitedCache.describeStats();
     }
 
+    /**
+     * Record that we have heard from this user.
+     *
+     * This only touches memcache; flushUserActivity persists it later.
+     */
     public void updateLastAccessed(final String email) {
-        Boolean result = new RetryingTransaction<Boolean>() {
-            @Override
-            public Boolean run(Objectify ofy) {
-                final LanternUser user = ofy.find(LanternUser.class, email);
-                if (user != null) {
-                    user.setLastAccessed(new Date());
-                    ofy.put(user);
+        UserActivityBuffer.recordAccess(email);
+    }
+
+    /**
+     * Persist the access times and stats buffered before the current flush
+     * period, a batch of users at a time.  If we run out of time, or a batch
+     * fails, what is left waits for the next flush.
+     *
+     * @return the number of users we updated.
+     */
+    public int flushUserActivity() {
+        final long start = System.currentTimeMillis();
+        // Users we already wrote in this flush, from an earlier bucket.
+        final Set<String> flushed = new HashSet<String>();
+        int updated = 0;
+        for (final UserActivityBuffer.Bucket bucket
+                 : UserActivityBuffer.buckets(start)) {
+            final List<String> emails = new ArrayList<String>();
+            for (final String email : bucket.getEmails()) {
+                if (!flushed.contains(email)) {
+                    emails.add(email);
                 }
-                ofy.getTxn().commit();
-                return true;
             }
-        }.run();
-        if (result == null) {
-            log.warning("Too much contention!");
+            for (int i = 0; i < emails.size(); i += ACTIVITY_BATCH_SIZE) {
+                if (System.currentTimeMillis() - start
+                        > ACTIVITY_FLUSH_MILLIS) {
+                    log.warning("Out of time after updating " + updated
+                                + " users; leaving the rest for the next"
+                                + " flush.");
+                    return updated;
+                }
+                final List<String> batch = emails.subList(
+                        i, Math.min(i + ACTIVITY_BATCH_SIZE, emails.size()));
+                updated += flushActivity(batch);
+                flushed.addAll(batch);
+            }
+            UserActivityBuffer.clear(bucket);
         }
+        log.info("Updated activity of " + updated + " of "
+                 + flushed.size() + " users.");
+        return updated;
     }
 
-    public boolean updateUser(final String userId, final long directRequests,
-            final long directBytes, final long requestsProxied,
-            final long bytesProxied, final String countryCode,
-            final String name, final Mode mode) {
-        log.info("Updating user with stats: dr: " + directRequests + " db: "
-                + directBytes + " bytesProxied: " + bytesProxied);
+    /**
+     * Drain and write the buffered activity of the given users.  Whatever we
+     * drain but don't get to write goes back to the buffer.
+     *
+     * @return the number of users we updated.
+     */
+    private int flushActivity(final List<String> emails) {
+        final Map<String, UserActivityBuffer.Activity> pending =
+            UserActivityBuffer.drain(emails);
+        int updated = 0;
+        try {
+            // Users with no stats whose stored lastAccessed is already
+            // current (e.g., because their entry was just created) don't need
+            // a transaction, and one batch get tells us which those are.
+            final Map<String, LanternUser> users =
+                ofy().get(LanternUser.class, pending.keySet());
+            for (final String email : emails) {
+                final UserActivityBuffer.Activity activity =
+                    pending.get(email);
+                if (activity == null) {
+                    continue;
+                }
+                final LanternUser user = users.get(email);
+                if (user == null) {
+                    log.warning("Dropping activity of unknown user " + email);
+                } else if (activity.hasStats() || isBefore(
+                        user.getLastAccessed(), activity.getLastAccessed())) {
+                    // We can't blindly put the users we just read, since
+                    // that could undo concurrent transactional updates to
+                    // them.
+                    if (applyActivity(email, activity)) {
+                        updated++;
+                    }
+                }
+                pending.remove(email);
+            }
+        } finally {
+            if (!pending.isEmpty()) {
+                log.warning("Restoring the activity of " + pending.size()
+                            + " users we could not write.");
+                UserActivityBuffer.restore(pending);
+            }
+        }
+        return updated;
+    }
+
+    private boolean applyActivity(final String email,
+            final UserActivityBuffer.Activity activity) {
         Boolean result = new RetryingTransaction<Boolean>() {
             @Override
             public Boolean run(Objectify ofy) {
-                LanternUser user = ofy.find(LanternUser.class, userId);
-                boolean isUserNew = (user == null);
-                if (isUserNew) {
-                    log.info("Could not find user!!");
-                    user = new LanternUser(userId);
-                    user.setName(name);
+                final LanternUser user = ofy.find(LanternUser.class, email);
+                if (user == null) {
+                    return false;
+                }
+                final Date date = activity.getLastAccessed();
+                if (isBefore(user.getLastAccessed(), date)) {
+                    user.setLastAccessed(date);
                 }
-                user.setBytesProxied(user.getBytesProxied() + bytesProxied);
+                user.setBytesProxied(user.getBytesProxied()
+                        + activity.getBytesProxied());
                 user.setRequestsProxied(user.getRequestsProxied()
-                        + requestsProxied);
-                user.setDirectBytes(user.getDirectBytes() + directBytes);
+                        + activity.getRequestsProxied());
+                user.setDirectBytes(user.getDirectBytes()
+                        + activity.getDirectBytes());
                 user.setDirectRequests(user.getDirectRequests()
-                        + directRequests);
-
+                        + activity.getDirectRequests());
                 ofy.put(user);
                 ofy.getTxn().commit();
-                log.info("Transaction successful.");
-
-                // Only increment counters on success.
-                incrementCounter(dottedPath(countryCode, BYTES_EVER), bytesProxied);
-                incrementCounter(dottedPath(GLOBAL, BYTES_EVER), bytesProxied);
-
-                incrementCounter(dottedPath(countryCode, BPS), bytesProxied);
-                incrementCounter(dottedPath(GLOBAL, BPS), bytesProxied);
-
-                incrementCounter(REQUESTS_PROXIED, requestsProxied);
-                incrementCounter(DIRECT_BYTES, directBytes);
-                incrementCounter(DIRECT_REQUESTS, directRequests);
-                if (isUserNew) {
-                    counterManager.increment(TOTAL_USERS);
-                    if (CensoredUtils.isCensored(countryCode)) {
-                        incrementCounter(CENSORED_USERS);
-                    } else {
-                        log.info("Incrementing uncensored count");
-                        incrementCounter(UNCENSORED_USERS);
-                    }
-                    incrementCounter(countryCode + ".nusers.ever");
-                }
-                return isUserNew;
+                return true;
             }
         }.run();
         if (result == null) {
-            // The caller expects some return value.
-            throw new RuntimeException("Too much contention!");
+            log.warning("Too much contention; leaving " + email
+                        + "'s stats for the next flush.");
+            UserActivityBuffer.recordStats(email,
+                    activity.getDirectRequests(), activity.getDirectBytes(),
+                    activity.getRequestsProxied(),
+                    activity.getBytesProxied());
+            return false;
         }
         return result;
     }
 
-    private void decrementCounter(String counter) {
-        counterManager.decrement(counter);
+    private static boolean isBefore(final Date stored, final Date date) {
+        return date != null && (stored == null || stored.before(date));
     }
 
-    private void incrementCounter(String counter) {
-        counterManager.increment(counter);
-    }
+    private void addStatsCounters(final Map<String, Long> counters,
+            final String countryCode, final long directRequests,
+            final long directBytes, final long requestsProxied,
+            final long bytesProxied) {
+        addCounter(counters, dottedPath(countryCode, BYTES_EVER), bytesProxied);
+        addCounter(counters, dottedPath(GLOBAL, BYTES_EVER), bytesProxied);
 
-    private void incrementCounter(String counter, long count) {
-        counterManager.increment(counter, count);
+        addCounter(counters, dottedPath(countryCode, BPS), bytesProxied);
+        addCounter(counters, dottedPath(GLOBAL, BPS), bytesProxied);
+
+        addCounter(counters, REQUESTS_PROXIED, requestsProxied);
+        addCounter(counters, DIRECT_BYTES, directBytes);
+        addCounter(counters, DIRECT_REQUESTS, directRequests);
     }
 
-    public String getStats() {
-        final Map<String, Object> data = new HashMap<String, Object>();
-        add(data, REQUESTS_PROXIED);
-        add(data, DIRECT_BYTES);
-        add(data, DIRECT_REQUESTS);
-        add(data, CENSORED_USERS);
-        add(data, UNCENSORED_USERS);
-        add(data, dottedPath(GLOBAL, NUSERS, ONLINE));
-        add(data, dottedPath(GLOBAL, NUSERS, EVER));
+    private void addNewUserCounters(final Map<String, Long> counters,
+            final String countryCode) {
+        addCounter(counters, TOTAL_USERS, 1);
+        if (CensoredUtils.isCensored(countryCode)) {
+            addCounter(counters, CENSORED_USERS, 1);
+        } else {
+            log.info("Incrementing uncensored count");
+            addCounter(counters, UNCENSORED_USERS, 1);
+        }
+        addCounter(counters, dottedPath(countryCode, NUSERS, EVER), 1);
+    }
 
-        add(data, dottedPath(GLOBAL, NPEERS, EVER, GIVE));
-        add(data, dottedPath(GLOBAL, NPEERS, EVER, GET));
-        add(data, dottedPath(GLOBAL, NPEERS, ONLINE, GIVE));
-        add(data, dottedPath(GLOBAL, NPEERS, ONLINE, GET));
-        add(data, dottedPath(GLOBAL, BPS));
-        add(data, dottedPath(GLOBAL, BYTES_EVER));
+    /**
+     * Add the counters in the given list, which are to be decremented if
+     * prefixed with '-' and incremented otherwise, to the given deltas.
+     */
+    private static void addCounters(final Map<String, Long> counters,
+            final List<String> names) {
+        for (String name : names) {
+            if (name.startsWith("-")) {
+                addCounter(counters, name.substring(1), -1);
+            } else {
+                addCounter(counters, name, 1);
+            }
+        }
+    }
 
-        final Map<String, Object> countriesData = new HashMap<String, Object>();
-        for (final String country : countries) {
-            add(countriesData, dottedPath(country, BPS));
-            add(countriesData, dottedPath(country, BYTES_EVER));
-            add(countriesData, dottedPath(country, NUSERS, ONLINE));
-            add(countriesData, dottedPath(country, NUSERS, EVER));
+    private static void addCounter(final Map<String, Long> counters,
+            final String name, final long delta) {
+        Long old = counters.get(name);
+        counters.put(name, old == null ? delta : old + delta);
+    }
 
-            add(countriesData, dottedPath(country, NPEERS, ONLINE, GIVE));
-            add(countriesData, dottedPath(country, NPEERS, ONLINE, GET));
-            add(countriesData, dottedPath(country, NPEERS, EVER, GIVE));
-            add(countriesData, dottedPath(country, NPEERS, EVER, GET));
+    /**
+     * Apply the given deltas to the counters.
+     *
+     * Call this only once the corresponding transaction has committed, since
+     * there is no way to roll back memcache changes.
+     */
+    private void updateCounters(final Map<String, Long> counters) {
+        // Idle clients report zero stats every time; the counter manager
+        // skips those.
+        log.info("Incrementing counters: " + counters);
+        if (CounterAccumulator.isEnabled()) {
+            CounterAccumulator.add(counters);
+        } else {
+            counterManager.incrementAll(counters);
         }
-        data.put("countries", countriesData);
-        return JsonUtils.jsonify(data);
+    }
+
+    private void incrementCounter(String counter) {
+        updateCounters(Collections.singletonMap(counter, 1L));
     }
 
     /**
-     * Take a counter name of the form a.b.c...y.z, and add it to data
-     * recursively, so that data will contain an entry for a which contains an
-     * entry for b, and so on down to the last level. The value of the counter
-     * with the full dotted name will be put into z entry of the y container.
-     *
-     * @param data
-     * @param key a counter name in the form a.b.c...
+     * @return when the counters that getStatsData reads were last persisted,
+     * in epoch milliseconds, to tell apart the stats documents of different
+     * persistence cycles.
      */
-    private void add(final Map<String, Object> data, final String key) {
-        add(data, key, key);
-    }
-
-    @SuppressWarnings("unchecked")
-    private void add(final Map<String, Object> data, final String key, final String counterName) {
-        if (key.contains(".")) {
-            String[] parts = key.split("\\.", 2);
-            String containerName = parts[0];
-            String remainder = parts[1];
-            Object existing = data.get(containerName);
-            Map<String, Object> container;
-            if (existing == null) {
-                container = new HashMap<String, Object>();
-                data.put(containerName, container);
-            } else {
-                container = (Map<String, Object>) existing;
+    public long getStatsVersion() {
+        return counterManager.getLastPersisted() * 1000;
+    }
+
+    /**
+     * @return the current values of the stats document.
+     */
+    public StatsData getStatsData() {
+        final StatsData data = new StatsData(STATS_LAYOUT);
+        final long[] totals = data.getTotals();
+        for (int i = 0; i < totals.length; i++) {
+            totals[i] = counterManager.getCount(STATS_LAYOUT.getTotal(i));
+        }
+        final long now = new Date().getTime() / 1000;
+        for (int scope = 0; scope < STATS_COUNTERS.length; scope++) {
+            final long[] values = data.getValues(scope);
+            final String[] counterNames = STATS_COUNTERS[scope];
+            for (int i = 0; i < values.length; i++) {
+                if (STATS_WINDOWS[i] == 0) {
+                    values[i] = counterManager.getCount(counterNames[i]);
+                } else {
+                    final SlidingWindowCounter window =
+                        counterManager.getWindow(counterNames[i]);
+                    values[i] = window == null
+                        ? 0L : window.getPerSecond(STATS_WINDOWS[i], now);
+                }
             }
-            add(container, remainder, counterName);
-        } else {
-            long count = counterManager.getCount(counterName);
-            data.put(key, count);
         }
+        return data;
     }
 
     public void whitelistAdditions(final Collection<String> whitelistAdditions,
@@ -910,15 +1339,9 @@ public class Dao extends DAOBase {
                 // transaction succeeded. Since these affect the memcache
                 // rather than the Datastore, there would be no way to roll
                 // them back should this transaction fail.
-                for (String counter : countersToUpdate) {
-                    if (counter.startsWith("-")) {
-                        log.info("Decrementing counter " + counter);
-                        decrementCounter(counter.substring(1));
-                    } else {
-                        log.info("Incrementing counter " + counter);
-                        incrementCounter(counter);
-                    }
-                }
+                Map<String, Long> counters = new HashMap<String, Long>();
+                addCounters(counters, countersToUpdate);
+                updateCounters(counters);
                 return true;
             }
         }.run();
@@ -953,23 +1376,37 @@ public class Dao extends DAOBase {
             counters.add("-" + dottedPath(GLOBAL, NPEERS, ONLINE, modeStr));
             counters.add("-" + dottedPath(countryCode, NPEERS, ONLINE, modeStr));
 
-            Query<LanternInstance> query = signedInInstanceQuery(ofy, userId);
-
-            //we compare against 1 here because we have not yet
-            //saved the current instance
-            boolean anyInstancesSignedIn = query.count() > 1;
-
-            if (!anyInstancesSignedIn) {
+            LanternUser user = ofy.get(parent);
+            trackAvailableInstances(ofy, user);
+            if (user.removeAvailableInstance(instance.getId())) {
                 log.info("Decrementing online user count");
                 counters.add("-" + dottedPath(GLOBAL, NUSERS, ONLINE));
                 counters.add("-" + dottedPath(countryCode, NUSERS, ONLINE));
             }
 
-            ofy.put(instance);
+            ofy.put(user, instance);
         }
         return counters;
     }
 
+    /**
+     * TRANSITION: make sure the user knows which of their instances are
+     * available.  Once they do, that is kept up to date along with the
+     * instances, so we don't need to query for them anymore.
+     */
+    private void trackAvailableInstances(Objectify ofy, LanternUser user) {
+        if (user.isAvailableInstancesTracked()) {
+            return;
+        }
+        log.info("Initializing available instances of " + user.getId());
+        List<String> ids = new ArrayList<String>();
+        for (LanternInstance instance
+                : signedInInstanceQuery(ofy, user.getId())) {
+            ids.add(instance.getId());
+        }
+        user.initAvailableInstanceIds(ids);
+    }
+
     private Query<LanternInstance> signedInInstanceQuery(Objectify ofy,
             String userId) {
         Key<LanternUser> parentKey = new Key<LanternUser>(LanternUser.class,
@@ -1110,6 +1547,36 @@ public class Dao extends DAOBase {
         settingsManager.set("invitesPaused", "" + paused);
     }
 
+    /**
+     * @return whether we reply to presences right away and do the rest of
+     * the work in the task queue.
+     */
+    public boolean arePresencesAsync() {
+        return settingsManager.getBoolean("presencesAsync");
+    }
+
+    public void setPresencesAsync(boolean async) {
+        settingsManager.set("presencesAsync", "" + async);
+    }
+
+    /**
+     * @return for how long we ignore presences that repeat the last one we
+     * processed from the same instance, or 0 not to.
+     */
+    public int getPresenceDebounceSeconds() {
+        Integer seconds = settingsManager.getInteger("presenceDebounceSeconds");
+        if (seconds == null) {
+            // Clients normally check in every UPDATE_TIME_MILLIS, so this
+            // only catches resends.
+            return 30;
+        }
+        return seconds;
+    }
+
+    public void setPresenceDebounceSeconds(int seconds) {
+        settingsManager.set("presenceDebounceSeconds", "" + seconds);
+    }
+
     public void setMaxInvitesPerProxy(int n) {
         settingsManager.set("maxInvitesPerProxy", "" + n);
     }
@@ -1434,6 +1901,8 @@ public class Dao extends DAOBase {
         if (txn.failed()) {
             throw new RuntimeException("Too much contention!");
         }
+        registerFallbackProxyAddress(ip + ":" + port,
+                                     getInstanceKey(userId, instanceId));
     }
 
     /**
@@ -1469,40 +1938,6 @@ public class Dao extends DAOBase {
         return ret;
     }
 
-    /**
-     * Move installerLocation from user to fallbackProxy if necessary.
-     *
-     * TRANSITION: In the old scheme installerLocation was set by user.  This
-     * code is for porting proxies that predate the fallback-balancing scheme.
-     */
-    public void transitionInstallerLocation(final String userId,
-                                            final String instanceId) {
-        RetryingTransaction<Void> txn = new RetryingTransaction<Void>() {
-            protected Void run(Objectify ofy) {
-                LanternUser user = ofy.find(LanternUser.class, userId);
-                String insloc = user.getInstallerLocation();
-                if (insloc == null) {
-                    return null;
-                }
-                log.info("Moving legacy installer location from " + userId
-                         + " to fallback proxy " + instanceId);
-                user.setInstallerLocation(null);
-                ofy.put(user);
-                LanternInstance instance = findInstance(ofy,
-                                                        userId,
-                                                        instanceId);
-                instance.setInstallerLocation(insloc);
-                ofy.put(instance);
-                ofy.getTxn().commit();
-                return null;
-            }
-        };
-        txn.run();
-        if (txn.failed()) {
-            log.severe("Transaction failed!");
-        }
-    }
-
     public int incrementFallbackSerialNumber(final String userId) {
         RetryingTransaction<Integer> txn = new RetryingTransaction<Integer>() {
             protected Integer run(Objectify ofy) {
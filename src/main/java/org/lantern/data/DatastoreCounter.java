@@ -33,6 +33,20 @@ public class DatastoreCounter implements Serializable {
 
     private boolean timed = false;
 
+    // How many shards we had before we last removed some, until the
+    // persistence cycle has drained the removed ones; 0 if there are none.
+    private int retiredShards = 0;
+
+    // What a timed counter got in recent persistence cycles; null for
+    // untimed counters, or until we first persist a timed one.
+    private SlidingWindowCounter window;
+
+    /**
+     * This counter as last encoded by CounterGroup, or null if it has changed
+     * since.
+     */
+    private transient byte[] encoded;
+
     public DatastoreCounter(String counterName, boolean timed) {
         this.counterName = counterName;
         this.timed = timed;
@@ -56,10 +70,12 @@ public class DatastoreCounter implements Serializable {
 
     public void setShardCount(int count) {
         shards = count;
+        encoded = null;
     }
 
     public void increment(long count) {
         this.count += count;
+        encoded = null;
     }
 
     public boolean isTimed() {
@@ -68,17 +84,91 @@ public class DatastoreCounter implements Serializable {
 
     public void setTimed(boolean timed) {
         this.timed = timed;
+        encoded = null;
     }
 
     public void setCount(long count) {
         this.count = count;
+        encoded = null;
     }
 
     public void addShard() {
        shards += 1;
+       encoded = null;
     }
 
     public void addShards(int n) {
        shards += n;
+       encoded = null;
+    }
+
+    /**
+     * Change the number of shards.  Shards we remove must still be drained
+     * once more, since instances may increment them until they learn of the
+     * change.
+     */
+    public void resizeShards(int n) {
+        if (n < shards) {
+            retiredShards = Math.max(retiredShards, shards);
+        }
+        shards = n;
+        encoded = null;
+    }
+
+    public int getRetiredShards() {
+        return retiredShards;
+    }
+
+    void setRetiredShards(int retiredShards) {
+        this.retiredShards = retiredShards;
+        encoded = null;
+    }
+
+    public void clearRetiredShards() {
+        setRetiredShards(0);
+    }
+
+    /**
+     * @return how many shards the persistence cycle must drain.
+     */
+    public int getShardsToDrain() {
+        return Math.max(shards, retiredShards);
+    }
+
+    /**
+     * Feed a timed counter what it got since the last persistence cycle,
+     * however long ago that was.  Its count becomes its rate per second over
+     * the last completed minute.
+     *
+     * @param now in epoch seconds.
+     */
+    public void recordInterval(long count, long now) {
+        if (window == null) {
+            window = new SlidingWindowCounter();
+        }
+        window.spread(count, now);
+        this.count = window.getPerSecond(SlidingWindowCounter.ONE_MINUTE, now);
+        encoded = null;
+    }
+
+    /**
+     * @return the recent history of a timed counter, or null if we have
+     * none.
+     */
+    public SlidingWindowCounter getWindow() {
+        return window;
+    }
+
+    void setWindow(SlidingWindowCounter window) {
+        this.window = window;
+        encoded = null;
+    }
+
+    byte[] getEncoded() {
+        return encoded;
+    }
+
+    void setEncoded(byte[] encoded) {
+        this.encoded = encoded;
     }
 }
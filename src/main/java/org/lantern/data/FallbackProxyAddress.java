@@ -0,0 +1,57 @@
+package org.lantern.data;
+
+import javax.persistence.Id;
+
+import com.googlecode.objectify.Key;
+
+/**
+ * Maps the host and port on which a fallback proxy listens to its instance.
+ *
+ * This lets us find a user's fallback proxy with a get rather than a query
+ * over all LanternInstances.  If another instance claims an address that is
+ * already taken, we mark the address as conflicted instead, and go back to
+ * querying for it until only one instance listens there.
+ */
+public class FallbackProxyAddress {
+
+    /**
+     * The host:port, as in LanternInstance.listenHostAndPort.
+     */
+    @Id
+    private String id;
+
+    private Key<LanternInstance> instance;
+
+    private boolean conflicted;
+
+    public FallbackProxyAddress() {
+        super();
+    }
+
+    public FallbackProxyAddress(String hostAndPort,
+                                Key<LanternInstance> instance) {
+        super();
+        this.id = hostAndPort;
+        this.instance = instance;
+    }
+
+    public String getHostAndPort() {
+        return id;
+    }
+
+    public Key<LanternInstance> getInstance() {
+        return instance;
+    }
+
+    /**
+     * @return whether more than one instance has claimed this address, so
+     * that we can't trust the instance it points to.
+     */
+    public boolean isConflicted() {
+        return conflicted;
+    }
+
+    public void setConflicted(boolean conflicted) {
+        this.conflicted = conflicted;
+    }
+}
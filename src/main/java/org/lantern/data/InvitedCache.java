@@ -0,0 +1,124 @@
+package org.lantern.data;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import com.google.appengine.api.memcache.ErrorHandlers;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+/**
+ * Remembers, in this instance and in memcache, whether users are invited.
+ *
+ * This spares Dao.isInvited a Datastore get for every presence of a known
+ * user.
+ *
+ * We never delete users, so we can remember that someone is invited for a
+ * long while.  We only remember that someone is *not* invited for a short
+ * while, because when they get invited in another instance we can only clear
+ * the memcache copy, not the one kept in this instance.
+ */
+class InvitedCache {
+
+    private static final int MAX_ENTRIES = 20000;
+
+    private static final int INVITED_TTL_SECONDS = 60 * 60;
+
+    private static final int NOT_INVITED_TTL_SECONDS = 60;
+
+    private static final String MEMCACHE_PREFIX = "invited ";
+
+    private static final Cache<String, Boolean> invited =
+        CacheBuilder.newBuilder()
+            .maximumSize(MAX_ENTRIES)
+            .expireAfterWrite(INVITED_TTL_SECONDS, TimeUnit.SECONDS)
+            .recordStats()
+            .build();
+
+    private static final Cache<String, Boolean> notInvited =
+        CacheBuilder.newBuilder()
+            .maximumSize(MAX_ENTRIES)
+            .expireAfterWrite(NOT_INVITED_TTL_SECONDS, TimeUnit.SECONDS)
+            .recordStats()
+            .build();
+
+    private static final AtomicLong memcacheHits = new AtomicLong();
+
+    private static final AtomicLong memcacheMisses = new AtomicLong();
+
+    private InvitedCache() {}
+
+    /**
+     * @return whether the user is invited, or null if we don't know.
+     */
+    static Boolean get(final String email) {
+        if (invited.getIfPresent(email) != null) {
+            return Boolean.TRUE;
+        }
+        if (notInvited.getIfPresent(email) != null) {
+            return Boolean.FALSE;
+        }
+        final Boolean cached = (Boolean) cache().get(MEMCACHE_PREFIX + email);
+        if (cached == null) {
+            memcacheMisses.incrementAndGet();
+            return null;
+        }
+        memcacheHits.incrementAndGet();
+        local(cached).put(email, cached);
+        return cached;
+    }
+
+    static void put(final String email, final boolean isInvited) {
+        local(isInvited).put(email, isInvited);
+        cache().put(MEMCACHE_PREFIX + email, isInvited,
+                    Expiration.byDeltaSeconds(isInvited
+                                              ? INVITED_TTL_SECONDS
+                                              : NOT_INVITED_TTL_SECONDS));
+    }
+
+    /**
+     * Call this whenever a user is created.
+     */
+    static void invalidate(final String email) {
+        invited.invalidate(email);
+        notInvited.invalidate(email);
+        cache().delete(MEMCACHE_PREFIX + email);
+    }
+
+    /**
+     * @return a human readable summary of hits and misses in this instance.
+     */
+    static String describeStats() {
+        final CacheStats in = invited.stats();
+        final CacheStats out = notInvited.stats();
+        // Every lookup goes through the invited cache first, so its request
+        // count is the total number of lookups.
+        final long lookups = in.requestCount();
+        final long localHits = in.hitCount() + out.hitCount();
+        return "lookups: " + lookups
+            + ", local hits: " + localHits
+            + " (invited: " + in.hitCount()
+            + ", not invited: " + out.hitCount() + ")"
+            + ", memcache hits: " + memcacheHits.get()
+            + ", misses: " + memcacheMisses.get()
+            + ", local entries: " + (invited.size() + notInvited.size())
+            + " of up to " + (2 * MAX_ENTRIES);
+    }
+
+    private static Cache<String, Boolean> local(final boolean isInvited) {
+        return isInvited ? invited : notInvited;
+    }
+
+    private static MemcacheService cache() {
+        final MemcacheService cache =
+            MemcacheServiceFactory.getMemcacheService();
+        cache.setErrorHandler(
+                ErrorHandlers.getConsistentLogAndContinue(Level.INFO));
+        return cache;
+    }
+}
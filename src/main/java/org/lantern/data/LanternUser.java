@@ -1,6 +1,7 @@
 package org.lantern.data;
 
 import java.io.Serializable;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.Set;
@@ -55,6 +56,16 @@ public class LanternUser implements Serializable {
      */
     private final HashSet<String> instanceIds = new HashSet<String>();
 
+    /**
+     * The instanceIds of this user's instances that are currently available.
+     *
+     * TRANSITION: this only means something if availableInstancesTracked.
+     * Users saved before we kept this have it initialized from their
+     * LanternInstances the first time it's needed.
+     */
+    private Set<String> availableInstanceIds = new HashSet<String>();
+
+    private boolean availableInstancesTracked = false;
 
     private String name;
 
@@ -186,6 +197,40 @@ public class LanternUser implements Serializable {
         return !instanceIds.add(instanceId);
     }
 
+    public boolean isAvailableInstancesTracked() {
+        return availableInstancesTracked;
+    }
+
+    public void initAvailableInstanceIds(Collection<String> instanceIds) {
+        availableInstanceIds = new HashSet<String>(instanceIds);
+        availableInstancesTracked = true;
+    }
+
+    /**
+     * @return whether this made the user go online.
+     */
+    public boolean addAvailableInstance(String instanceId) {
+        if (availableInstanceIds == null) {
+            // Objectify doesn't store empty collections.
+            availableInstanceIds = new HashSet<String>();
+        }
+        boolean wasOffline = availableInstanceIds.isEmpty();
+        availableInstanceIds.add(instanceId);
+        return wasOffline;
+    }
+
+    /**
+     * @return whether this made the user go offline.
+     */
+    public boolean removeAvailableInstance(String instanceId) {
+        if (availableInstanceIds == null
+            || availableInstanceIds.isEmpty()) {
+            return false;
+        }
+        availableInstanceIds.remove(instanceId);
+        return availableInstanceIds.isEmpty();
+    }
+
     public boolean countrySeen(String countryCode) {
         if (countryCodes == null) {
             countryCodes = countryCode + ".";
@@ -0,0 +1,95 @@
+package org.lantern.data;
+
+import java.io.Serializable;
+
+/**
+ * How long a persistence cycle took, and how the shards of our counters
+ * looked after it.
+ */
+public class ShardCountSample implements Serializable {
+
+    private static final long serialVersionUID = 5093166420745839276L;
+
+    // in epoch seconds
+    private long time;
+
+    private int counters;
+
+    private int shards;
+
+    private int retiredShards;
+
+    private int grown;
+
+    private int shrunk;
+
+    private long millis;
+
+    public long getTime() {
+        return time;
+    }
+
+    public void setTime(long time) {
+        this.time = time;
+    }
+
+    public int getCounters() {
+        return counters;
+    }
+
+    public void setCounters(int counters) {
+        this.counters = counters;
+    }
+
+    public int getShards() {
+        return shards;
+    }
+
+    public void setShards(int shards) {
+        this.shards = shards;
+    }
+
+    public int getRetiredShards() {
+        return retiredShards;
+    }
+
+    public void setRetiredShards(int retiredShards) {
+        this.retiredShards = retiredShards;
+    }
+
+    public int getGrown() {
+        return grown;
+    }
+
+    public void setGrown(int grown) {
+        this.grown = grown;
+    }
+
+    public int getShrunk() {
+        return shrunk;
+    }
+
+    public void setShrunk(int shrunk) {
+        this.shrunk = shrunk;
+    }
+
+    public long getMillis() {
+        return millis;
+    }
+
+    public void setMillis(long millis) {
+        this.millis = millis;
+    }
+
+    /**
+     * Add the numbers of another sample, e.g. of another counter group, to
+     * ours.
+     */
+    public void add(ShardCountSample other) {
+        counters += other.counters;
+        shards += other.shards;
+        retiredShards += other.retiredShards;
+        grown += other.grown;
+        shrunk += other.shrunk;
+    }
+}
@@ -21,10 +21,16 @@ package org.lantern.data;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.ConcurrentModificationException;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -33,7 +39,6 @@ import javax.jdo.PersistenceManager;
 
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
-import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.Transaction;
 import com.google.appengine.api.memcache.ErrorHandlers;
@@ -58,18 +63,76 @@ public class ShardedCounterManager {
     // how many updates (on average) we record for each shard
     public static final int SHARD_UPDATE_RATIO = 10;
 
+    // How many persistence cycles of shard counts we keep around.
+    private static final int SHARD_HISTORY_LENGTH = 24 * 60;
+
+    private static final String SHARD_HISTORY_KEY = "shardCountHistory";
+
     // This slightly insane constant is required because
     // MemcacheService.increment with negative count will never go below zero.
     // But sometimes we want to go below zero -- for instance, the change in
     // number of users online (this minute) might be negative.
     private static final Long BASELINE = Long.MAX_VALUE / 2;
 
-    private static final Key COUNTERGROUPKEY = KeyFactory.createKey(
-            CounterGroup.class.getSimpleName(), CounterGroup.singletonKey);
+    // Counters are kept in several groups, persisted independently, so that
+    // updating or adding counters in one of them doesn't contend with the
+    // others and no single entity has to hold every counter.  Global counters,
+    // and the totals that don't belong to any country (PROXIED_REQUESTS and
+    // the like), get a group of their own; per-country ones are grouped by
+    // the initial of their country code.
+    private static final String GLOBAL_PARTITION = "global";
+
+    private static final String OTHER_PARTITION = "other";
+
+    public static final List<String> PARTITIONS;
+
+    static {
+        final List<String> partitions = new ArrayList<String>();
+        partitions.add(GLOBAL_PARTITION);
+        for (char c = 'A'; c <= 'Z'; c++) {
+            partitions.add(String.valueOf(c));
+        }
+        partitions.add(OTHER_PARTITION);
+        PARTITIONS = Collections.unmodifiableList(partitions);
+    }
+
+    private static final String GROUP_CACHE_PREFIX = "countergroup ";
+
+    // Stay well below the limits memcache places on batch calls.
+    private static final int BATCH_SIZE = 1000;
+
+    // Bumped whenever a group changes, so instances know to refresh their
+    // metadata for it.
+    private static final String VERSION_CACHE_PREFIX = "countergroupVersion ";
+
+    // How often (in milliseconds) we check whether our metadata is stale.
+    // Until then, we may miss new counters or shards.
+    private static final long VERSION_CHECK_MILLIS = 5000;
+
+    /**
+     * Metadata of the groups we have seen in this instance, by partition.
+     */
+    private static final ConcurrentHashMap<String, CounterMetadata> METADATA =
+        new ConcurrentHashMap<String, CounterMetadata>();
+
+    private static volatile long lastVersionCheck = 0;
+
+    // Random.nextInt doesn't allocate, unlike creating a Random per call.
+    private static final ThreadLocal<Random> RANDOM =
+        new ThreadLocal<Random>() {
+            @Override
+            protected Random initialValue() {
+                return new Random();
+            }
+        };
 
     private static boolean disabled = false;
 
-    CounterGroup group;
+    /**
+     * The groups we have loaded so far, by partition.
+     */
+    private final Map<String, CounterGroup> groups =
+        new HashMap<String, CounterGroup>();
 
     MemcacheService cache = MemcacheServiceFactory.getMemcacheService();
     
@@ -81,6 +144,42 @@ public class ShardedCounterManager {
         cache.setErrorHandler(ErrorHandlers.getConsistentLogAndContinue(Level.INFO));
     }
 
+    /**
+     * @return the partition whose group holds the given counter.
+     */
+    public static String partitionOf(final String counterName) {
+        // This is on the path of every increment, so it doesn't allocate.
+        final int length = GLOBAL_PARTITION.length();
+        if (counterName.startsWith(GLOBAL_PARTITION)
+            && (counterName.length() == length
+                || counterName.charAt(length) == '.')) {
+            return GLOBAL_PARTITION;
+        }
+        // Country counters are scoped by a two letter country code.
+        if (counterName.length() > 2 && isUpperCase(counterName.charAt(0))
+            && isUpperCase(counterName.charAt(1))
+            && counterName.charAt(2) == '.') {
+            return PARTITIONS.get(1 + counterName.charAt(0) - 'A');
+        }
+        // Totals aren't scoped at all.
+        if (!counterName.isEmpty() && counterName.indexOf('.') == -1) {
+            return GLOBAL_PARTITION;
+        }
+        return OTHER_PARTITION;
+    }
+
+    private static boolean isUpperCase(final char c) {
+        return c >= 'A' && c <= 'Z';
+    }
+
+    static String shardKey(final String counterName, final int shard) {
+        return "count" + counterName + "-" + shard;
+    }
+
+    static String updatesKey(final String counterName) {
+        return "updates" + counterName;
+    }
+
     /**
      * Same as increment(name, 1)
      */
@@ -102,87 +201,244 @@ public class ShardedCounterManager {
      * @param count
      */
     final void increment(final String name, long count) {
-        if (!loadGroup()) {
-            return;
+        incrementAll(Collections.singletonMap(name, count));
+    }
+
+    /**
+     * Increment each of the given counters by the given amount.
+     *
+     * This takes at most two memcache calls, however many counters there are:
+     * one for the shards and one for the updates counters.
+     *
+     * @return the counts that memcache failed to apply, by counter, for the
+     * caller to try again later if it can.
+     */
+    final Map<String, Long> incrementAll(final Map<String, Long> counts) {
+        final Map<String, Long> failed = new HashMap<String, Long>();
+        final Map<String, CounterMetadata> metadata =
+            loadMetadata(partitionsOf(counts.keySet()));
+        if (metadata == null) {
+            return failed;
         }
-        DatastoreCounter counter = group.getCounter(name);
-        if (counter == null) {
-            log.log(Level.WARNING, "Trying to increment nonexistent counter " + name);
-            return;
+        final Map<String, Long> shardDeltas = new HashMap<String, Long>();
+        final Map<String, String> shardCounters =
+            new HashMap<String, String>();
+        final Map<String, Long> updateDeltas = new HashMap<String, Long>();
+        final Random generator = RANDOM.get();
+        for (Map.Entry<String, Long> entry : counts.entrySet()) {
+            final String name = entry.getKey();
+            final long count = entry.getValue();
+            if (count == 0) {
+                continue;
+            }
+            final CounterMetadata.Counter counter =
+                metadata.get(partitionOf(name)).getCounter(name);
+            if (counter == null) {
+                log.log(Level.WARNING, "Trying to increment nonexistent counter " + name);
+                continue;
+            }
+            int shardCount = counter.getShardCount();
+            if (shardCount <= 0) {
+                log.severe("Bogus shard count for " + name + ": " + Integer.toString(shardCount));
+                continue;
+            }
+            int shardNum = generator.nextInt(shardCount);
+            final String shardKey = counter.getShardKey(shardNum);
+            shardDeltas.put(shardKey, count);
+            shardCounters.put(shardKey, name);
+
+            // updates holds the approximate number of updates per minute.
+            // This is implemented by incrementing it by N stochastically
+            // 1/Nth of the times that the counter updates.
+
+            int dieRoll = generator.nextInt(shardCount * SHARD_UPDATE_RATIO);
+            if (dieRoll == 0) {
+                updateDeltas.put(counter.getUpdatesKey(),
+                                 (long) shardCount * SHARD_UPDATE_RATIO);
+            }
         }
-        int shardCount = counter.getShardCount();
-        if (shardCount <= 0) {
-            log.severe("Bogus shard count for " + name + ": " + Integer.toString(shardCount));
-            return;
+        if (!shardDeltas.isEmpty()) {
+            // Our error handler logs memcache errors and leaves out the
+            // shards it couldn't increment.
+            final Map<String, Long> applied =
+                cache.incrementAll(shardDeltas, BASELINE);
+            for (Map.Entry<String, Long> entry : shardDeltas.entrySet()) {
+                if (applied == null || applied.get(entry.getKey()) == null) {
+                    failed.put(shardCounters.get(entry.getKey()),
+                               entry.getValue());
+                }
+            }
+        }
+        if (!updateDeltas.isEmpty()) {
+            cache.incrementAll(updateDeltas, 0L);
         }
-        Random generator = new Random();
-        int shardNum = generator.nextInt(shardCount);
-        cache.increment("count" + name + "-" + shardNum, count, BASELINE);
+        return failed;
+    }
+
+    private static Set<String> partitionsOf(final Collection<String> names) {
+        final Set<String> partitions = new HashSet<String>();
+        for (String name : names) {
+            partitions.add(partitionOf(name));
+        }
+        return partitions;
+    }
+
+    /**
+     * Get the metadata of the groups of the given partitions, refreshing it if
+     * it may be stale.
+     *
+     * Most of the time this takes no memcache calls at all, and at most one
+     * every VERSION_CHECK_MILLIS unless some group changed.
+     *
+     * @return the metadata by partition, or null if counters are disabled.
+     */
+    private Map<String, CounterMetadata> loadMetadata(
+            final Collection<String> partitions) {
+        if (disabled) {
+            log.warning("NOT CREATING COUNTERS -- SHOULD BE ONLY DURING TESTING!");
+            return null;
+        }
+        final long now = System.currentTimeMillis();
+        if (now - lastVersionCheck > VERSION_CHECK_MILLIS) {
+            lastVersionCheck = now;
+            final List<String> keys = new ArrayList<String>();
+            for (String partition : METADATA.keySet()) {
+                keys.add(VERSION_CACHE_PREFIX + partition);
+            }
+            final Map<String, Object> versions = cache.getAll(keys);
+            for (Map.Entry<String, CounterMetadata> entry
+                    : METADATA.entrySet()) {
+                final Object version =
+                    versions.get(VERSION_CACHE_PREFIX + entry.getKey());
+                if (version == null
+                    || toLong(version) != entry.getValue().getVersion()) {
+                    METADATA.remove(entry.getKey());
+                }
+            }
+        }
+        final Map<String, CounterMetadata> metadata =
+            new HashMap<String, CounterMetadata>();
+        for (String partition : partitions) {
+            CounterMetadata m = METADATA.get(partition);
+            if (m == null) {
+                // Read the version first, so that any change we don't see in
+                // the group makes this snapshot stale.
+                final long version = getVersion(partition);
+                groups.remove(partition);
+                loadGroups(Collections.singleton(partition));
+                m = new CounterMetadata(version, groups.get(partition));
+                METADATA.put(partition, m);
+            }
+            metadata.put(partition, m);
+        }
+        return metadata;
+    }
 
-        // updates holds the approximate number of updates per minute. This
-        // is implemented by incrementing it by N stochastically 1/Nth of the
-        // times that the counter updates.
+    private long getVersion(final String partition) {
+        // If memcache lost the version, start over from a value no instance
+        // is likely to have seen.
+        final Long version = cache.increment(VERSION_CACHE_PREFIX + partition,
+                                             0L, System.currentTimeMillis());
+        return version == null ? 0L : version;
+    }
 
-        int dieRoll = generator.nextInt(shardCount * SHARD_UPDATE_RATIO);
-        if (dieRoll == 0) {
-            cache.increment("updates" + name, shardCount * SHARD_UPDATE_RATIO, 0L);
+    /**
+     * Memcache may hand back increment()ed values as Strings or Longs.
+     */
+    private static long toLong(final Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
         }
+        return Long.parseLong(value.toString().trim());
+    }
+
+    private DatastoreCounter findCounter(final String name) {
+        return groups.get(partitionOf(name)).getCounter(name);
     }
 
-    private boolean loadGroup() {
+    /**
+     * Make sure we have loaded the groups of the given partitions, from
+     * memcache if possible.
+     *
+     * @return false if counters are disabled.
+     */
+    private boolean loadGroups(final Collection<String> partitions) {
         if (disabled) {
             log.warning("NOT CREATING COUNTERS -- SHOULD BE ONLY DURING TESTING!");
             return false;
         }
-        if (group != null)
-            return true;
-
-        // try to get from cache
-        group = (CounterGroup) cache.get("countergroup");
-        if (group != null)
-            // No need to restore() when reading from memcache.  It's only the
-            // Datastore that won't persist the counters hashmap.
+        final List<String> keys = new ArrayList<String>();
+        for (String partition : partitions) {
+            if (!groups.containsKey(partition)) {
+                keys.add(GROUP_CACHE_PREFIX + partition);
+            }
+        }
+        if (keys.isEmpty()) {
             return true;
+        }
+        // No need to restore() when reading from memcache.  It's only the
+        // Datastore that won't persist the counters hashmap.
+        for (Map.Entry<String, Object> entry : cache.getAll(keys).entrySet()) {
+            groups.put(entry.getKey().substring(GROUP_CACHE_PREFIX.length()),
+                       (CounterGroup) entry.getValue());
+        }
+        for (String partition : partitions) {
+            if (!groups.containsKey(partition)) {
+                groups.put(partition, loadGroupFromDatastore(partition));
+            }
+        }
+        return true;
+    }
 
-        log.info("Forced to load counter group from database.  This will be slow.");
+    private CounterGroup loadGroupFromDatastore(final String partition) {
+        log.info("Forced to load counter group " + partition
+                 + " from database.  This will be slow.");
         CounterGroup g;
+        // TRANSITION: the single group we used to keep all counters in, which
+        // we read (outside of any transaction) to seed new groups.
+        CounterGroup legacy = null;
+        boolean needLegacy = false;
         DatastoreService datastore =
             DatastoreServiceFactory.getDatastoreService();
         for (int tries=10; tries > 0; --tries) {
+            if (needLegacy && legacy == null) {
+                legacy = readLegacyGroup();
+            }
             Transaction txn = datastore.beginTransaction();
             try {
                 final PersistenceManager pm =
                     PMF.get().getPersistenceManager();
                 try {
-                    g = readGroupFromDatastore(pm);
+                    g = readGroupFromDatastore(pm, partition);
                     if (g.getNumCounters() == 0) {
-                        log.warning("Loading empty countergroup!");
+                        log.warning("Loading empty countergroup "
+                                    + partition + "!");
                     } else {
-                        log.info("Group has " + g.getNumCounters()
-                                 + " counters.");
+                        log.info("Group " + partition + " has "
+                                 + g.getNumCounters() + " counters.");
                     }
                 } catch (JDOObjectNotFoundException e) {
-                    log.warning("Did not find a counter group."
-                        + " Creating a new one. This should only ever happen"
+                    if (!needLegacy) {
+                        needLegacy = true;
+                        pm.close();
+                        continue;
+                    }
+                    log.warning("Did not find counter group " + partition
+                        + ". Creating a new one. This should only ever happen"
                         + " once.");
-                    g = new CounterGroup();
+                    g = newGroup(partition, legacy);
                     writeGroupToDatastore(pm, g);
                 }
                 pm.close();
                 txn.commit();
-                group = g;
                 // No need to prepareForPersistence when writing to memcache.
-                // (And we know persistedCounters is in sync with counters at
-                //  this point, BTW).
-                cache.put("countergroup", g);
-                return true;
+                cache.put(GROUP_CACHE_PREFIX + partition, g);
+                if (needLegacy) {
+                    bumpVersion(partition);
+                }
+                return g;
             } catch (ConcurrentModificationException e) {
                 log.warning("Concurrent modification!");
-                // If some thread has concurrently succeeded in loading this
-                // group, we don't need to do it again.
-                if (group != null) {
-                    return true;
-                }
             } finally {
                 if (txn.isActive()) {
                     txn.rollback();
@@ -192,10 +448,47 @@ public class ShardedCounterManager {
         throw new RuntimeException("Too much contention for group!");
     }
 
+    private CounterGroup readLegacyGroup() {
+        final PersistenceManager pm = PMF.get().getPersistenceManager();
+        try {
+            final CounterGroup legacy = pm.getObjectById(CounterGroup.class,
+                    KeyFactory.createKey(CounterGroup.class.getSimpleName(),
+                                         CounterGroup.singletonKey));
+            legacy.restore();
+            return legacy;
+        } catch (JDOObjectNotFoundException e) {
+            return null;
+        } finally {
+            pm.close();
+        }
+    }
+
+    private CounterGroup newGroup(final String partition,
+            final CounterGroup legacy) {
+        final CounterGroup g = new CounterGroup(groupKey(partition));
+        if (legacy != null) {
+            for (DatastoreCounter counter
+                    : legacy.getAllCounters().values()) {
+                if (partition.equals(partitionOf(counter.getCounterName()))) {
+                    g.addCounter(counter);
+                }
+            }
+            log.info("Took " + g.getNumCounters()
+                     + " counters from the old counter group.");
+        }
+        return g;
+    }
+
+    private static String groupKey(final String partition) {
+        return CounterGroup.singletonKey + "-" + partition;
+    }
+
     public long getCount(final String counterName) {
-        if (!loadGroup()) {
+        final String partition = partitionOf(counterName);
+        if (!loadGroups(Collections.singleton(partition))) {
             return 0L;
         }
+        final CounterGroup group = groups.get(partition);
         DatastoreCounter counter = group.getCounter(counterName);
         if (counter == null) {
             counter = new DatastoreCounter(counterName);
@@ -208,28 +501,39 @@ public class ShardedCounterManager {
 
     public void initCounters(Collection<String> timed,
                              Collection<String> untimed) {
-        if (!loadGroup()) {
+        final Set<String> partitions = partitionsOf(timed);
+        partitions.addAll(partitionsOf(untimed));
+        final Map<String, CounterMetadata> metadata = loadMetadata(partitions);
+        if (metadata == null) {
             return;
         }
-        // First pass to avoid touching the Datastore if the group has
+        // First pass to avoid touching the Datastore if the groups have
         // all the names, which will be true most often.
+        final Set<String> incomplete = new HashSet<String>();
         for (String name : timed) {
-            if (group.getCounter(name) == null) {
-                actuallyInitCounters(timed, untimed);
-                return;
+            if (metadata.get(partitionOf(name)).getCounter(name) == null) {
+                incomplete.add(partitionOf(name));
             }
         }
         for (String name : untimed) {
-            if (group.getCounter(name) == null) {
-                actuallyInitCounters(timed, untimed);
-                return;
+            if (metadata.get(partitionOf(name)).getCounter(name) == null) {
+                incomplete.add(partitionOf(name));
             }
         }
-        log.info("No need.");
+        if (incomplete.isEmpty()) {
+            log.info("No need.");
+            return;
+        }
+        for (String partition : incomplete) {
+            actuallyInitCounters(partition, timed, untimed);
+        }
     }
 
-    private CounterGroup readGroupFromDatastore(PersistenceManager pm) {
-        CounterGroup g = pm.getObjectById(CounterGroup.class, COUNTERGROUPKEY);
+    private CounterGroup readGroupFromDatastore(PersistenceManager pm,
+                                                String partition) {
+        CounterGroup g = pm.getObjectById(CounterGroup.class,
+                KeyFactory.createKey(CounterGroup.class.getSimpleName(),
+                                     groupKey(partition)));
         g.restore();
         return g;
     }
@@ -241,7 +545,8 @@ public class ShardedCounterManager {
         pm.makePersistent(g);
     }
 
-    private void actuallyInitCounters(Collection<String> timed,
+    private void actuallyInitCounters(String partition,
+                                      Collection<String> timed,
                                       Collection<String> untimed) {
         CounterGroup g;
         DatastoreService datastore =
@@ -251,16 +556,18 @@ public class ShardedCounterManager {
             try {
                 final PersistenceManager pm =
                     PMF.get().getPersistenceManager();
-                g = readGroupFromDatastore(pm);
+                g = readGroupFromDatastore(pm, partition);
                 for (String name : timed) {
-                    if (g.getCounter(name) == null) {
+                    if (partition.equals(partitionOf(name))
+                        && g.getCounter(name) == null) {
                         DatastoreCounter counter =
                             new DatastoreCounter(name, true);
                         g.addCounter(counter);
                     }
                 }
                 for (String name : untimed) {
-                    if (g.getCounter(name) == null) {
+                    if (partition.equals(partitionOf(name))
+                        && g.getCounter(name) == null) {
                         if ("global.nusers.ever".equals(name)) {
                             log.warning("Creating initial"
                                 + " global.nusers.ever; "
@@ -271,12 +578,12 @@ public class ShardedCounterManager {
                         g.addCounter(counter);
                     }
                 }
-                log.info("Saving group with " + g.getNumCounters()
-                         + " counters.");
+                log.info("Saving group " + partition + " with "
+                         + g.getNumCounters() + " counters.");
                 writeGroupToDatastore(pm, g);
                 pm.close();
                 txn.commit();
-                invalidateGroupCache();
+                invalidateGroupCache(partition);
                 return;
             } catch (ConcurrentModificationException e) {
                 log.warning("Concurrent modification!");
@@ -289,64 +596,272 @@ public class ShardedCounterManager {
         throw new RuntimeException("Too much contention for group!");
     }
 
-    private void invalidateGroupCache() {
-        log.info("Invalidating group cache.");
-        group = null;
-        cache.delete("countergroup");
+    private void invalidateGroupCache(final String partition) {
+        log.info("Invalidating cache of group " + partition + ".");
+        groups.remove(partition);
+        cache.delete(GROUP_CACHE_PREFIX + partition);
+        bumpVersion(partition);
+    }
+
+    private void bumpVersion(final String partition) {
+        cache.increment(VERSION_CACHE_PREFIX + partition, 1L,
+                        System.currentTimeMillis());
+        METADATA.remove(partition);
     }
 
     public Map<String, DatastoreCounter> getAllCounters() {
-        loadGroup();
-        return group.getAllCounters();
+        final Map<String, DatastoreCounter> all =
+            new HashMap<String, DatastoreCounter>();
+        if (!loadGroups(PARTITIONS)) {
+            return all;
+        }
+        for (CounterGroup group : groups.values()) {
+            all.putAll(group.getAllCounters());
+        }
+        return all;
+    }
+
+    /**
+     * @return the counters in the group of the given partition.
+     */
+    public Map<String, DatastoreCounter> getCounters(final String partition) {
+        if (!loadGroups(Collections.singleton(partition))) {
+            return new HashMap<String, DatastoreCounter>();
+        }
+        return groups.get(partition).getAllCounters();
+    }
+
+    /**
+     * How many shards a counter should have, given how many updates it got
+     * during the last persistence cycle.
+     *
+     * We add shards as soon as the current ones can't take the updates, but
+     * only remove them when the remaining ones would be at most half loaded,
+     * and never more than half of them at once, so counters don't flap
+     * between shard counts.
+     */
+    public static int targetShardCount(final int currentShards,
+            final long updates, final int seconds) {
+        final long perShard = (long) MAX_UPDATES_PER_SHARD_PER_SECOND * seconds;
+        final int needed = (int) Math.max(1, (updates + perShard - 1) / perShard);
+        if (needed > currentShards) {
+            return needed;
+        }
+        final int relaxed =
+            (int) Math.max(1, (2 * updates + perShard - 1) / perShard);
+        if (relaxed < currentShards) {
+            return Math.max(relaxed, (currentShards + 1) / 2);
+        }
+        return currentShards;
     }
 
+    /**
+     * @return the recent history of the given timed counter, or null if we
+     * have none.
+     */
+    public SlidingWindowCounter getWindow(final String counterName) {
+        final String partition = partitionOf(counterName);
+        if (!loadGroups(Collections.singleton(partition))) {
+            return null;
+        }
+        final DatastoreCounter counter = findCounter(counterName);
+        return counter == null ? null : counter.getWindow();
+    }
+
+    /**
+     * What the persistence cycle takes out of memcache for a counter.
+     */
+    public static class DrainedCounter {
+        private long count;
+
+        private long updates;
+
+        /**
+         * @return how much the counter was incremented since it was last
+         * drained.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return the approximate number of updates to the counter since it
+         * was last drained.
+         */
+        public long getUpdates() {
+            return updates;
+        }
+    }
+
+    /**
+     * @return how much the given counter has been incremented since we last
+     * drained it, removing that from its shards.
+     */
     public long getNewCountDestructive(String counterName) {
-        loadGroup();
-        final DatastoreCounter counter = group.getCounter(counterName);
-        final int shardCount = counter.getShardCount();
-        long total = 0;
-        final ArrayList<String> keys = new ArrayList<String>();
+        loadGroups(Collections.singleton(partitionOf(counterName)));
+        final DatastoreCounter counter = findCounter(counterName);
+        // Include shards we have just retired.
+        final int shardCount = counter.getShardsToDrain();
+        final Map<String, Long> baselines = new HashMap<String, Long>();
         for (int shardNum = 0; shardNum < shardCount; ++shardNum) {
-            keys.add("count" + counterName + "-" + shardNum);
+            baselines.put(shardKey(counterName, shardNum), BASELINE);
         }
-        Map<String, Object> results = cache.getAll(keys);
-        for (Map.Entry<String, Object> result : results.entrySet()) {
-            total += (Long) result.getValue() - BASELINE;
-            cache.delete(result.getKey());
+        long total = 0;
+        for (long delta : drainKeys(baselines).values()) {
+            total += delta;
         }
         return total;
     }
 
-    public void updateCounters(Map<String, Long> toReplace,
+    /**
+     * Drain the shards and updates counters of all the given counters at
+     * once.
+     *
+     * This takes two batched memcache calls per BATCH_SIZE keys, rather than
+     * a few calls per counter.
+     *
+     * @return what we drained, by counter name.  Counters that had nothing
+     * to drain are left out.
+     */
+    public Map<String, DrainedCounter> drainCounters(
+            final Collection<DatastoreCounter> counters) {
+        final Map<String, Long> baselines = new HashMap<String, Long>();
+        final Map<String, String> owners = new HashMap<String, String>();
+        final Set<String> updatesKeys = new HashSet<String>();
+        for (DatastoreCounter counter : counters) {
+            final String name = counter.getCounterName();
+            // Include shards we have just retired.
+            final int shardCount = counter.getShardsToDrain();
+            for (int shardNum = 0; shardNum < shardCount; ++shardNum) {
+                final String key = shardKey(name, shardNum);
+                baselines.put(key, BASELINE);
+                owners.put(key, name);
+            }
+            final String key = updatesKey(name);
+            baselines.put(key, 0L);
+            owners.put(key, name);
+            updatesKeys.add(key);
+        }
+        final Map<String, DrainedCounter> drained =
+            new HashMap<String, DrainedCounter>();
+        for (Map.Entry<String, Long> entry : drainKeys(baselines).entrySet()) {
+            final String name = owners.get(entry.getKey());
+            DrainedCounter d = drained.get(name);
+            if (d == null) {
+                d = new DrainedCounter();
+                drained.put(name, d);
+            }
+            if (updatesKeys.contains(entry.getKey())) {
+                d.updates += entry.getValue();
+            } else {
+                d.count += entry.getValue();
+            }
+        }
+        return drained;
+    }
+
+    /**
+     * Read the given memcache counters and bring each back to the given
+     * baseline.
+     *
+     * We subtract what we read rather than deleting the keys, so increments
+     * that land between our read and our write are left for the next drain
+     * rather than lost.
+     *
+     * @return how far above its baseline each key was, for those that
+     * weren't at it.
+     */
+    private Map<String, Long> drainKeys(final Map<String, Long> baselines) {
+        final List<String> keys = new ArrayList<String>(baselines.keySet());
+        final Map<String, Long> deltas = new HashMap<String, Long>();
+        for (int i = 0; i < keys.size(); i += BATCH_SIZE) {
+            final List<String> batch =
+                keys.subList(i, Math.min(i + BATCH_SIZE, keys.size()));
+            final Map<String, Object> results = cache.getAll(batch);
+            final Map<String, Long> subtract = new HashMap<String, Long>();
+            for (Map.Entry<String, Object> result : results.entrySet()) {
+                final long delta = toLong(result.getValue())
+                    - baselines.get(result.getKey());
+                if (delta != 0) {
+                    deltas.put(result.getKey(), delta);
+                    subtract.put(result.getKey(), -delta);
+                }
+            }
+            if (!subtract.isEmpty()) {
+                cache.incrementAll(subtract);
+            }
+        }
+        return deltas;
+    }
+
+    /**
+     * Apply the given changes to the counters, one transaction per group
+     * they touch.
+     *
+     * @param toRecord what timed counters got since the last persistence
+     * cycle.
+     * @param retiredDrained counters whose retired shards we have drained
+     * since they were retired, and which can be forgotten now.
+     */
+    public void updateCounters(Map<String, Long> toRecord,
                                Map<String, Long> toIncrement,
-                               Map<String, Integer> toAddShards) {
+                               Map<String, Integer> toResizeShards,
+                               Collection<String> retiredDrained) {
+        final Set<String> partitions = partitionsOf(toRecord.keySet());
+        partitions.addAll(partitionsOf(toIncrement.keySet()));
+        partitions.addAll(partitionsOf(toResizeShards.keySet()));
+        partitions.addAll(partitionsOf(retiredDrained));
+        for (String partition : partitions) {
+            updateCounters(partition, toRecord, toIncrement, toResizeShards,
+                           retiredDrained);
+        }
+    }
+
+    private void updateCounters(String partition,
+                                Map<String, Long> toRecord,
+                                Map<String, Long> toIncrement,
+                                Map<String, Integer> toResizeShards,
+                                Collection<String> retiredDrained) {
         DatastoreService datastore =
                 DatastoreServiceFactory.getDatastoreService();
         for (int tries=10; tries > 0; --tries) {
             Transaction txn = datastore.beginTransaction();
             try {
                 PersistenceManager pm = PMF.get().getPersistenceManager();
-                CounterGroup g = readGroupFromDatastore(pm);
-                for (Map.Entry<String, Long> entry : toReplace.entrySet()) {
-                    g.getCounter(entry.getKey()).setCount(entry.getValue());
+                CounterGroup g = readGroupFromDatastore(pm, partition);
+                final long now = new Date().getTime() / 1000;
+                for (Map.Entry<String, Long> entry : toRecord.entrySet()) {
+                    if (partition.equals(partitionOf(entry.getKey()))) {
+                        g.getCounter(entry.getKey())
+                         .recordInterval(entry.getValue(), now);
+                    }
                 }
                 for (Map.Entry<String, Long> entry : toIncrement.entrySet()) {
-                    g.getCounter(entry.getKey()).increment(entry.getValue());
+                    if (partition.equals(partitionOf(entry.getKey()))) {
+                        g.getCounter(entry.getKey()).increment(entry.getValue());
+                    }
+                }
+                for (String name : retiredDrained) {
+                    if (partition.equals(partitionOf(name))) {
+                        g.getCounter(name).clearRetiredShards();
+                    }
                 }
                 for (Map.Entry<String, Integer> entry
-                     : toAddShards.entrySet()) {
-                    g.getCounter(entry.getKey()).addShards(entry.getValue());
+                     : toResizeShards.entrySet()) {
+                    if (partition.equals(partitionOf(entry.getKey()))) {
+                        g.getCounter(entry.getKey()).resizeShards(entry.getValue());
+                    }
                 }
                 writeGroupToDatastore(pm, g);
                 pm.close();
                 txn.commit();
-                if (group.getNumCounters() == 0) {
+                if (g.getNumCounters() == 0) {
                     log.warning("Saving an empty countergroup!");
                 } else {
-                    log.info("Saving group with " + group.getNumCounters()
-                             + " counters.");
+                    log.info("Saving group " + partition + " with "
+                             + g.getNumCounters() + " counters.");
                 }
-                invalidateGroupCache();
+                invalidateGroupCache(partition);
                 return;
             } catch (ConcurrentModificationException e) {
                 log.warning("Concurrent modification!");
@@ -359,8 +874,61 @@ public class ShardedCounterManager {
         throw new RuntimeException("Too much contention for group!");
     }
 
-    public long getLastUpdated() {
-        loadGroup();
-        return group.getLastUpdated();
+    /**
+     * @return when we last persisted the group of the given partition, in
+     * epoch seconds.
+     */
+    public long getLastUpdated(final String partition) {
+        if (!loadGroups(Collections.singleton(partition))) {
+            return 0L;
+        }
+        return groups.get(partition).getLastUpdated();
+    }
+
+    /**
+     * @return when we last persisted any counter group, in epoch seconds, or
+     * 0 if we never did (or counters are disabled).
+     */
+    public long getLastPersisted() {
+        if (!loadGroups(PARTITIONS)) {
+            return 0L;
+        }
+        long result = 0L;
+        for (String partition : PARTITIONS) {
+            result = Math.max(result, groups.get(partition).getLastUpdated());
+        }
+        return result;
+    }
+
+    /**
+     * Remember how our shards looked after a persistence cycle.
+     */
+    public void recordShardCounts(final ShardCountSample sample) {
+        @SuppressWarnings("unchecked")
+        ArrayList<ShardCountSample> history =
+            (ArrayList<ShardCountSample>) cache.get(SHARD_HISTORY_KEY);
+        if (history == null) {
+            history = new ArrayList<ShardCountSample>();
+        }
+        history.add(sample);
+        if (history.size() > SHARD_HISTORY_LENGTH) {
+            history = new ArrayList<ShardCountSample>(history.subList(
+                    history.size() - SHARD_HISTORY_LENGTH, history.size()));
+        }
+        cache.put(SHARD_HISTORY_KEY, history);
+    }
+
+    /**
+     * @return how our shards looked after recent persistence cycles, most
+     * recent last.  This lives in memcache only, so it may have gaps.
+     */
+    @SuppressWarnings("unchecked")
+    public List<ShardCountSample> getShardCountHistory() {
+        final List<ShardCountSample> history =
+            (List<ShardCountSample>) cache.get(SHARD_HISTORY_KEY);
+        if (history == null) {
+            return Collections.emptyList();
+        }
+        return history;
     }
-}
\ No newline at end of file
+}
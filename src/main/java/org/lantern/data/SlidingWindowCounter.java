@@ -0,0 +1,155 @@
+package org.lantern.data;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A TimedCounter that remembers how much it got in each of the last BUCKETS
+ * intervals of BUCKET_SECONDS, so it can tell its rate over any window of up
+ * to an hour.
+ *
+ * Rates only cover completed intervals.  The persistence cycle may run more
+ * than once in an interval (or not at all), so the count of the interval we
+ * are in tells nothing about the rate until the interval is over.
+ *
+ * This doesn't touch memcache itself.  Increments go to the memcache shards
+ * of the corresponding DatastoreCounter, like those of any other counter, and
+ * the persistence cycle feeds what it drains from them in here.
+ */
+public class SlidingWindowCounter implements TimedCounter, Serializable {
+
+    private static final long serialVersionUID = -3027617440911843516L;
+
+    public static final int BUCKET_SECONDS =
+        ShardedCounterManager.PERSIST_TIMEOUT;
+
+    // An hour of completed intervals, plus the one we are in.
+    public static final int BUCKETS = 61;
+
+    public static final int ONE_MINUTE = 60;
+
+    public static final int FIVE_MINUTES = 5 * 60;
+
+    public static final int ONE_HOUR = 60 * 60;
+
+    // A ring buffer, indexed by interval modulo its length.  That is BUCKETS,
+    // but copies cached before it grew to hold the current interval may be
+    // an interval short.
+    private final long[] buckets = new long[BUCKETS];
+
+    // The interval (in epoch seconds / BUCKET_SECONDS) of the newest bucket.
+    private long newest;
+
+    public SlidingWindowCounter() {}
+
+    /**
+     * @param newestFirst the counts of the newest intervals, newest first, as
+     * returned by getNewestFirst.
+     */
+    SlidingWindowCounter(final long newest, final long[] newestFirst) {
+        this.newest = newest;
+        for (int i = 0; i < newestFirst.length && i < BUCKETS; i++) {
+            buckets[index(newest - i)] = newestFirst[i];
+        }
+    }
+
+    @Override
+    public void increment(final long count) {
+        increment(count, System.currentTimeMillis() / 1000);
+    }
+
+    /**
+     * @param now in epoch seconds.
+     */
+    public void increment(final long count, final long now) {
+        advance(now / BUCKET_SECONDS);
+        buckets[index(newest)] += count;
+    }
+
+    /**
+     * Add what we got since we were last fed, spread evenly over the
+     * intervals since then, so that what a late or skipped persistence cycle
+     * drains doesn't show up as a spike in the newest interval.  Intervals
+     * that have already fallen out of our history get their share too, so
+     * the rates we tell stay right.
+     *
+     * @param now in epoch seconds.
+     */
+    public void spread(final long count, final long now) {
+        final long interval = now / BUCKET_SECONDS;
+        // If we have never been fed we can't tell.
+        final long n = newest == 0 || interval <= newest
+            ? 1 : interval - newest;
+        advance(interval);
+        final long share = count / n;
+        // Whatever doesn't divide evenly goes to the newest intervals.
+        final long remainder = count - share * n;
+        for (long i = 0; i < Math.min(n, buckets.length); i++) {
+            buckets[index(newest - i)] += share
+                + (i < Math.abs(remainder) ? Long.signum(remainder) : 0);
+        }
+    }
+
+    /**
+     * @return the rate over the last minute.
+     */
+    @Override
+    public long getPerSecond() {
+        return getPerSecond(ONE_MINUTE, System.currentTimeMillis() / 1000);
+    }
+
+    /**
+     * @return the rate over the last windowSeconds (rounded to whole
+     * intervals, and at most an hour) up to the last completed interval
+     * before now, or the newest interval we have been fed if that is older.
+     */
+    public long getPerSecond(final int windowSeconds, final long now) {
+        final int n = Math.max(1,
+            Math.min(buckets.length - 1, windowSeconds / BUCKET_SECONDS));
+        final long end = Math.min(newest, now / BUCKET_SECONDS - 1);
+        long total = 0;
+        for (long interval = end - n + 1; interval <= end; interval++) {
+            if (interval > newest - buckets.length) {
+                total += buckets[index(interval)];
+            }
+        }
+        return total / ((long) n * BUCKET_SECONDS);
+    }
+
+    long getNewest() {
+        return newest;
+    }
+
+    /**
+     * @return the counts of our intervals, newest first, without the trailing
+     * zeros.
+     */
+    long[] getNewestFirst() {
+        int length = 0;
+        final long[] counts = new long[buckets.length];
+        for (int i = 0; i < buckets.length; i++) {
+            counts[i] = buckets[index(newest - i)];
+            if (counts[i] != 0) {
+                length = i + 1;
+            }
+        }
+        return Arrays.copyOf(counts, length);
+    }
+
+    private void advance(final long interval) {
+        // Anything we get late goes to the newest interval.
+        if (interval <= newest) {
+            return;
+        }
+        final long skipped = Math.min(interval - newest, buckets.length);
+        for (long i = 1; i <= skipped; i++) {
+            buckets[index(newest + i)] = 0;
+        }
+        newest = interval;
+    }
+
+    private int index(final long interval) {
+        return (int) (((interval % buckets.length) + buckets.length)
+                      % buckets.length);
+    }
+}
@@ -0,0 +1,264 @@
+package org.lantern.data;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collection;
+
+import org.codehaus.jackson.JsonGenerator;
+
+/**
+ * The values of the stats document, laid out as flat arrays.
+ *
+ * The document has a few totals, and the same metrics for the whole network
+ * (Dao.GLOBAL) and for each country, all sorted by name.  Metric names are
+ * dotted paths, which the Layout splits once, so that we can write the
+ * document in a single pass, opening and closing nested objects as the sorted
+ * paths require, without building it as nested maps first.
+ */
+public class StatsData implements Serializable {
+
+    private static final long serialVersionUID = 5719437316102384925L;
+
+    /**
+     * What the values of a StatsData are the values of.
+     */
+    public static class Layout implements Serializable {
+
+        private static final long serialVersionUID = -3461052474531718502L;
+
+        private final String[] totals;
+
+        private final String[] metrics;
+
+        private final String[][] metricPaths;
+
+        /**
+         * Dao.GLOBAL, then the countries in order.
+         */
+        private final String[] scopes;
+
+        public Layout(final String[] totals, final String[] metrics,
+                final String[] countries) {
+            this.totals = sorted(totals);
+            this.metrics = sorted(metrics);
+            metricPaths = new String[this.metrics.length][];
+            for (int i = 0; i < metricPaths.length; i++) {
+                metricPaths[i] = this.metrics[i].split("\\.");
+            }
+            final String[] sortedCountries = sorted(countries);
+            scopes = new String[sortedCountries.length + 1];
+            scopes[0] = Dao.GLOBAL;
+            System.arraycopy(sortedCountries, 0, scopes, 1,
+                             sortedCountries.length);
+        }
+
+        public int getTotalCount() {
+            return totals.length;
+        }
+
+        public String getTotal(final int i) {
+            return totals[i];
+        }
+
+        public int getMetricCount() {
+            return metrics.length;
+        }
+
+        /**
+         * @return the dotted name of the given metric.
+         */
+        public String getMetric(final int i) {
+            return metrics[i];
+        }
+
+        public int getScopeCount() {
+            return scopes.length;
+        }
+
+        /**
+         * @return Dao.GLOBAL for scope 0, and country codes for the rest.
+         */
+        public String getScope(final int scope) {
+            return scopes[scope];
+        }
+
+        /**
+         * @return the index of the given scope, or -1 if there is no such
+         * one.
+         */
+        public int indexOfScope(final String name) {
+            if (Dao.GLOBAL.equals(name)) {
+                return 0;
+            }
+            final int i = Arrays.binarySearch(scopes, 1, scopes.length, name);
+            return i < 0 ? -1 : i;
+        }
+
+        /**
+         * @param selected dotted metric names; a metric may name a subtree,
+         * like "npeers.online".
+         * @return which of our metrics the given ones select, to pass to
+         * writeScope.
+         */
+        public boolean[] selectMetrics(final Collection<String> selected) {
+            final boolean[] result = new boolean[metricPaths.length];
+            for (String metric : selected) {
+                final String[] path = metric.split("\\.");
+                for (int i = 0; i < metricPaths.length; i++) {
+                    result[i] |= startsWith(metricPaths[i], path);
+                }
+            }
+            return result;
+        }
+
+        private static String[] sorted(final String[] names) {
+            final String[] result = names.clone();
+            Arrays.sort(result);
+            return result;
+        }
+
+        private static boolean startsWith(final String[] path,
+                final String[] prefix) {
+            if (prefix.length > path.length) {
+                return false;
+            }
+            for (int i = 0; i < prefix.length; i++) {
+                if (!path[i].equals(prefix[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Told where the object of each scope goes, as writeDocument writes it.
+     */
+    public interface ScopeListener {
+        /**
+         * Called right after the opening brace of the scope's object.
+         */
+        void scopeStarted(int scope) throws IOException;
+
+        /**
+         * Called right after the closing brace of the scope's object.
+         */
+        void scopeEnded(int scope) throws IOException;
+    }
+
+    private final Layout layout;
+
+    private final long[] totals;
+
+    private final long[][] values;
+
+    public StatsData(final Layout layout) {
+        this.layout = layout;
+        totals = new long[layout.totals.length];
+        values = new long[layout.scopes.length][layout.metrics.length];
+    }
+
+    public Layout getLayout() {
+        return layout;
+    }
+
+    /**
+     * @return the totals, in the order of the layout, to read or fill in.
+     */
+    public long[] getTotals() {
+        return totals;
+    }
+
+    /**
+     * @return the metrics of the given scope, in the order of the layout, to
+     * read or fill in.
+     */
+    public long[] getValues(final int scope) {
+        return values[scope];
+    }
+
+    /**
+     * Write the whole document: the totals, each country under
+     * Dao.COUNTRIES and the whole network under Dao.GLOBAL.
+     */
+    public void writeDocument(final JsonGenerator generator)
+            throws IOException {
+        writeDocument(generator, null);
+    }
+
+    /**
+     * Like writeDocument(generator), telling the given listener (if not
+     * null) about each scope.
+     */
+    public void writeDocument(final JsonGenerator generator,
+            final ScopeListener listener) throws IOException {
+        generator.writeStartObject();
+        // Keys are in order, since the totals are in upper case.
+        for (int i = 0; i < totals.length; i++) {
+            generator.writeNumberField(layout.totals[i], totals[i]);
+        }
+        generator.writeObjectFieldStart(Dao.COUNTRIES);
+        for (int scope = 1; scope < values.length; scope++) {
+            generator.writeFieldName(layout.scopes[scope]);
+            writeScope(generator, scope, null, listener);
+        }
+        generator.writeEndObject();
+        generator.writeFieldName(Dao.GLOBAL);
+        writeScope(generator, 0, null, listener);
+        generator.writeEndObject();
+    }
+
+    /**
+     * Write the given scope as an object.
+     *
+     * @param selected as returned by Layout.selectMetrics, or null for all
+     * metrics.
+     */
+    public void writeScope(final JsonGenerator generator, final int scope,
+            final boolean[] selected) throws IOException {
+        writeScope(generator, scope, selected, null);
+    }
+
+    private void writeScope(final JsonGenerator generator, final int scope,
+            final boolean[] selected, final ScopeListener listener)
+            throws IOException {
+        final String[][] paths = layout.metricPaths;
+        final long[] scopeValues = values[scope];
+        generator.writeStartObject();
+        if (listener != null) {
+            listener.scopeStarted(scope);
+        }
+        // The path of the last metric we wrote, of which we have the first
+        // depth levels open.
+        String[] open = null;
+        int depth = 0;
+        for (int i = 0; i < paths.length; i++) {
+            if (selected != null && !selected[i]) {
+                continue;
+            }
+            final String[] path = paths[i];
+            int common = 0;
+            while (common < depth && common < path.length - 1
+                   && open[common].equals(path[common])) {
+                common++;
+            }
+            for (; depth > common; depth--) {
+                generator.writeEndObject();
+            }
+            for (; depth < path.length - 1; depth++) {
+                generator.writeObjectFieldStart(path[depth]);
+            }
+            generator.writeNumberField(path[path.length - 1],
+                                       scopeValues[i]);
+            open = path;
+        }
+        for (; depth > 0; depth--) {
+            generator.writeEndObject();
+        }
+        generator.writeEndObject();
+        if (listener != null) {
+            listener.scopeEnded(scope);
+        }
+    }
+}
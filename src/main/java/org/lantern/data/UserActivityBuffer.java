@@ -0,0 +1,380 @@
+package org.lantern.data;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.memcache.ErrorHandlers;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+/**
+ * Write-behind buffer for users' last access times and stats.
+ *
+ * Recording activity only touches memcache.  UserActivityController
+ * periodically has the Dao persist the latest access time and the accumulated
+ * stats of every user seen since the last flush, so we write each user at
+ * most once per flush period instead of on every presence.
+ *
+ * Users are registered as dirty in per-period buckets, keyed by the wall clock
+ * time divided by the flush period, so writers need no shared state to find
+ * out which bucket is current.  Every user we hear from is registered in the
+ * bucket of the current period, once per period, so whatever a flush misses
+ * (because a cron run was skipped or failed) is picked up by a later one as
+ * long as the user stays active.  A flush handles the buckets of the previous
+ * DRAIN_PERIODS periods and never the current one.
+ *
+ * A flush drains and writes a batch of users at a time, and only clears a
+ * bucket once all of its users are written, so a flush that runs out of time
+ * or fails leaves the rest to the next one.  Stats are drained by
+ * decrementing them by what we read, so whatever is added concurrently is
+ * left for the next flush, and the stats of a batch that fails are restored.  Like our counters, this is
+ * still lossy if memcache evicts an entry.
+ */
+class UserActivityBuffer {
+
+    private static final transient Logger log =
+        Logger.getLogger(UserActivityBuffer.class.getName());
+
+    // How frequently (in minutes) we persist user activity; this must match
+    // the value in cron.xml
+    static final int FLUSH_MINUTES = 10;
+
+    private static final long FLUSH_MILLIS = FLUSH_MINUTES * 60 * 1000L;
+
+    // How many past periods a flush looks at, in case cron runs were skipped
+    // or failed.
+    static final int DRAIN_PERIODS = 6;
+
+    private static final int EXPIRATION_SECONDS =
+        (DRAIN_PERIODS + 1) * FLUSH_MINUTES * 60;
+
+    // Stay well below the limits memcache places on batch calls.
+    private static final int BATCH_SIZE = 1000;
+
+    private static final String ACCESSED_PREFIX = "lastAccessed ";
+
+    private static final String DIRTY_PREFIX = "userActivityDirty ";
+
+    private static final String DIRECT_REQUESTS = "userStats dr ";
+
+    private static final String DIRECT_BYTES = "userStats db ";
+
+    private static final String REQUESTS_PROXIED = "userStats rp ";
+
+    private static final String BYTES_PROXIED = "userStats bp ";
+
+    private static final String[] STATS = { DIRECT_REQUESTS, DIRECT_BYTES,
+        REQUESTS_PROXIED, BYTES_PROXIED };
+
+    /**
+     * What we have buffered for a single user.
+     */
+    static class Activity {
+        /**
+         * Null if memcache lost it.
+         */
+        private Date lastAccessed;
+
+        private long directRequests;
+
+        private long directBytes;
+
+        private long requestsProxied;
+
+        private long bytesProxied;
+
+        Date getLastAccessed() {
+            return lastAccessed;
+        }
+
+        long getDirectRequests() {
+            return directRequests;
+        }
+
+        long getDirectBytes() {
+            return directBytes;
+        }
+
+        long getRequestsProxied() {
+            return requestsProxied;
+        }
+
+        long getBytesProxied() {
+            return bytesProxied;
+        }
+
+        boolean hasStats() {
+            return directRequests != 0 || directBytes != 0
+                || requestsProxied != 0 || bytesProxied != 0;
+        }
+    }
+
+    private UserActivityBuffer() {}
+
+    static void recordAccess(final String email) {
+        recordAccess(email, System.currentTimeMillis());
+    }
+
+    static void recordAccess(final String email, final long now) {
+        final MemcacheService cache = cache();
+        final Expiration expiration =
+            Expiration.byDeltaSeconds(EXPIRATION_SECONDS);
+        cache.put(ACCESSED_PREFIX + email, now, expiration);
+        final String bucket = DIRTY_PREFIX + (now / FLUSH_MILLIS);
+        // Most of the time this user is already registered in this period.
+        if (!cache.put(bucket + " " + email, Boolean.TRUE, expiration,
+                       SetPolicy.ADD_ONLY_IF_NOT_PRESENT)) {
+            return;
+        }
+        final Long slot = cache.increment(bucket, 1, 0L);
+        if (slot == null) {
+            log.warning("Could not register " + email + " as active.");
+            return;
+        }
+        cache.put(bucket + " " + slot, email, expiration);
+    }
+
+    /**
+     * Add to the stats of this user, and record that we have heard from them.
+     *
+     * Only non-zero deltas cost a memcache call.
+     */
+    static void recordStats(final String email, final long directRequests,
+            final long directBytes, final long requestsProxied,
+            final long bytesProxied) {
+        final Map<String, Long> deltas = new HashMap<String, Long>();
+        addDelta(deltas, DIRECT_REQUESTS + email, directRequests);
+        addDelta(deltas, DIRECT_BYTES + email, directBytes);
+        addDelta(deltas, REQUESTS_PROXIED + email, requestsProxied);
+        addDelta(deltas, BYTES_PROXIED + email, bytesProxied);
+        if (!deltas.isEmpty()) {
+            cache().incrementAll(deltas, 0L);
+        }
+        // Register only after incrementing, so that a concurrent flush either
+        // sees these stats or leaves them for the user's next registration.
+        recordAccess(email);
+    }
+
+    /**
+     * The users registered in one past flush period.
+     */
+    static class Bucket {
+        private final String key;
+
+        private final long slots;
+
+        private final List<String> emails;
+
+        private Bucket(final String key, final long slots,
+                final List<String> emails) {
+            this.key = key;
+            this.slots = slots;
+            this.emails = emails;
+        }
+
+        List<String> getEmails() {
+            return emails;
+        }
+    }
+
+    /**
+     * @return the buckets of the periods a flush handles, oldest first.
+     * Draining users doesn't take them out of their buckets; clear each one
+     * once its users are written.
+     */
+    static List<Bucket> buckets(final long now) {
+        final MemcacheService cache = cache();
+        final long current = now / FLUSH_MILLIS;
+        final List<Bucket> result = new ArrayList<Bucket>();
+        for (long period = current - DRAIN_PERIODS; period < current;
+             period++) {
+            final String bucket = DIRTY_PREFIX + period;
+            final Long slots = (Long) cache.get(bucket);
+            if (slots == null) {
+                continue;
+            }
+            final List<String> slotKeys = new ArrayList<String>();
+            for (long slot = 1; slot <= slots; slot++) {
+                slotKeys.add(bucket + " " + slot);
+            }
+            final Map<String, Object> emails = getAll(cache, slotKeys);
+            final List<String> bucketEmails = new ArrayList<String>();
+            for (String slotKey : slotKeys) {
+                final Object email = emails.get(slotKey);
+                if (email != null) {
+                    bucketEmails.add((String) email);
+                }
+            }
+            result.add(new Bucket(bucket, slots, bucketEmails));
+        }
+        return result;
+    }
+
+    /**
+     * Take the stats of the given users out of the buffer.
+     *
+     * @return what we had buffered for each of them, leaving out users
+     * memcache has nothing on.  Hand whatever doesn't get written back to
+     * restore.
+     */
+    static Map<String, Activity> drain(final Collection<String> emails) {
+        final MemcacheService cache = cache();
+        final List<String> accessedKeys = new ArrayList<String>();
+        final List<String> statsKeys = new ArrayList<String>();
+        for (String email : emails) {
+            accessedKeys.add(ACCESSED_PREFIX + email);
+            for (String stat : STATS) {
+                statsKeys.add(stat + email);
+            }
+        }
+        // We leave these to expire, since we may see the same users in the
+        // buckets of later periods, and Dao skips times it already has.
+        final Map<String, Object> times = getAll(cache, accessedKeys);
+        final Map<String, Object> stats = getAll(cache, statsKeys);
+        final Map<String, Long> drained = new HashMap<String, Long>();
+        for (Map.Entry<String, Object> entry : stats.entrySet()) {
+            addDelta(drained, entry.getKey(), -toLong(entry.getValue()));
+        }
+        incrementAll(cache, drained);
+
+        final Map<String, Activity> result = new HashMap<String, Activity>();
+        for (String email : emails) {
+            final Activity activity = new Activity();
+            final Object time = times.get(ACCESSED_PREFIX + email);
+            if (time != null) {
+                activity.lastAccessed = new Date((Long) time);
+            }
+            activity.directRequests = toLong(stats.get(DIRECT_REQUESTS + email));
+            activity.directBytes = toLong(stats.get(DIRECT_BYTES + email));
+            activity.requestsProxied =
+                toLong(stats.get(REQUESTS_PROXIED + email));
+            activity.bytesProxied = toLong(stats.get(BYTES_PROXIED + email));
+            if (activity.lastAccessed != null || activity.hasStats()) {
+                result.put(email, activity);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Put back the stats of drained users we could not write.
+     *
+     * Their buckets still hold them, as long as those aren't cleared, so a
+     * later flush picks them up again.
+     */
+    static void restore(final Map<String, Activity> activities) {
+        final Map<String, Long> deltas = new HashMap<String, Long>();
+        for (Map.Entry<String, Activity> entry : activities.entrySet()) {
+            final String email = entry.getKey();
+            final Activity activity = entry.getValue();
+            addDelta(deltas, DIRECT_REQUESTS + email,
+                     activity.directRequests);
+            addDelta(deltas, DIRECT_BYTES + email, activity.directBytes);
+            addDelta(deltas, REQUESTS_PROXIED + email,
+                     activity.requestsProxied);
+            addDelta(deltas, BYTES_PROXIED + email, activity.bytesProxied);
+        }
+        incrementAll(cache(), deltas, 0L);
+    }
+
+    /**
+     * Remove a bucket, once all of its users are written.
+     */
+    static void clear(final Bucket bucket) {
+        final List<String> slotKeys = new ArrayList<String>();
+        for (long slot = 1; slot <= bucket.slots; slot++) {
+            slotKeys.add(bucket.key + " " + slot);
+        }
+        final MemcacheService cache = cache();
+        deleteAll(cache, slotKeys);
+        cache.delete(bucket.key);
+    }
+
+    private static void addDelta(final Map<String, Long> deltas,
+            final String key, final long delta) {
+        if (delta != 0) {
+            deltas.put(key, delta);
+        }
+    }
+
+    /**
+     * Memcache may hand back increment()ed values as Strings or Longs.
+     */
+    private static long toLong(final Object value) {
+        if (value == null) {
+            return 0;
+        }
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        return Long.parseLong(value.toString().trim());
+    }
+
+    private static Map<String, Object> getAll(final MemcacheService cache,
+            final List<String> keys) {
+        final Map<String, Object> result = new HashMap<String, Object>();
+        for (int i = 0; i < keys.size(); i += BATCH_SIZE) {
+            final List<String> batch =
+                keys.subList(i, Math.min(i + BATCH_SIZE, keys.size()));
+            result.putAll(cache.getAll(batch));
+        }
+        return result;
+    }
+
+    private static void deleteAll(final MemcacheService cache,
+            final List<String> keys) {
+        for (int i = 0; i < keys.size(); i += BATCH_SIZE) {
+            final Collection<String> batch =
+                keys.subList(i, Math.min(i + BATCH_SIZE, keys.size()));
+            cache.deleteAll(batch);
+        }
+    }
+
+    private static void incrementAll(final MemcacheService cache,
+            final Map<String, Long> deltas) {
+        incrementAll(cache, deltas, null);
+    }
+
+    /**
+     * @param initialValue for keys that aren't there, or null to skip them.
+     */
+    private static void incrementAll(final MemcacheService cache,
+            final Map<String, Long> deltas, final Long initialValue) {
+        Map<String, Long> batch = new HashMap<String, Long>();
+        for (Map.Entry<String, Long> entry : deltas.entrySet()) {
+            batch.put(entry.getKey(), entry.getValue());
+            if (batch.size() == BATCH_SIZE) {
+                incrementBatch(cache, batch, initialValue);
+                batch = new HashMap<String, Long>();
+            }
+        }
+        if (!batch.isEmpty()) {
+            incrementBatch(cache, batch, initialValue);
+        }
+    }
+
+    private static void incrementBatch(final MemcacheService cache,
+            final Map<String, Long> batch, final Long initialValue) {
+        if (initialValue == null) {
+            cache.incrementAll(batch);
+        } else {
+            cache.incrementAll(batch, initialValue);
+        }
+    }
+
+    private static MemcacheService cache() {
+        final MemcacheService cache =
+            MemcacheServiceFactory.getMemcacheService();
+        cache.setErrorHandler(
+                ErrorHandlers.getConsistentLogAndContinue(Level.INFO));
+        return cache;
+    }
+}
@@ -1,6 +1,11 @@
 <%@ page contentType="text/html;charset=UTF-8" language="java" %>
 <%@ page import="org.lantern.AdminServlet" %>
+<%@ page import="org.lantern.PresenceDebouncer" %>
 <%@ page import="org.lantern.data.Dao" %>
+<%@ page import="org.lantern.data.ShardCountSample" %>
+<%@ page import="org.lantern.data.ShardedCounterManager" %>
+<%@ page import="java.util.Date" %>
+<%@ page import="java.util.List" %>
 <!DOCTYPE html PUBLIC "-//W3C//DTD HTML 4.01 Transitional//EN" "http://www.w3.org/TR/html4/loose.dtd">
 <html>
 <head>
@@ -37,6 +42,55 @@ Invites are unpaused.  <button type="submit" name="paused" value="true">Pause in
 <br/>
 <br/>
 
+<h2>Synchronous/asynchronous presences</h2>
+<p>Asynchronous presences get their reply right away, and the rest of their processing in the task queue.</p>
+<form method="POST" action="/admin/post/setPresencesAsync">
+<% if (dao.arePresencesAsync()) { %>
+Presences are processed asynchronously.  <button type="submit" name="async" value="false">Process presences synchronously</button>
+<% } else { %>
+Presences are processed synchronously.  <button type="submit" name="async" value="true">Process presences asynchronously</button><br/>
+<% } %>
+<%= AdminServlet.getCsrfTag() %>
+</form>
+
+<br/>
+<br/>
+
+<h2>Presence debouncing</h2>
+<p>Ignore presences that repeat the last one we processed from the same instance within this many seconds (0 to disable).</p>
+<p>In this instance, <%= PresenceDebouncer.describeStats() %></p>
+<form method="POST" action="/admin/post/setPresenceDebounceSeconds">
+<input type="text" name="seconds" value="<%= dao.getPresenceDebounceSeconds() %>">
+<button type="submit" name="set" value="true">Set debounce window</button><br/>
+<%= AdminServlet.getCsrfTag() %>
+</form>
+
+<br/>
+<br/>
+
+<h2>Invited cache</h2>
+<p>How often this instance answers "is this user invited?" without going to the datastore.</p>
+<p><%= dao.getInvitedCacheStats() %></p>
+
+<br/>
+<br/>
+
+<h2>Counter shards</h2>
+<p>How long the most recent persistence cycles took, and how many memcache shards our counters had after them.</p>
+<table>
+<tr><th>Time</th><th>Counters</th><th>Shards</th><th>Retired</th><th>Grew</th><th>Shrank</th><th>Took (ms)</th></tr>
+<%
+List<ShardCountSample> shardHistory = new ShardedCounterManager().getShardCountHistory();
+for (int i = shardHistory.size() - 1; i >= Math.max(0, shardHistory.size() - 60); i--) {
+    ShardCountSample sample = shardHistory.get(i);
+%>
+<tr><td><%= new Date(sample.getTime() * 1000) %></td><td><%= sample.getCounters() %></td><td><%= sample.getShards() %></td><td><%= sample.getRetiredShards() %></td><td><%= sample.getGrown() %></td><td><%= sample.getShrunk() %></td><td><%= sample.getMillis() %></td></tr>
+<% } %>
+</table>
+
+<br/>
+<br/>
+
 <h2>Set max invites per proxy</h2>
 <p>Set the number of invites we'll direct to a proxy before we launch a new one.</p>
 <form method="POST" action="/admin/post/setMaxInvitesPerProxy">
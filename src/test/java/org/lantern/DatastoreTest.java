@@ -1,13 +1,18 @@
 package org.lantern;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
+import java.util.Arrays;
 import java.util.List;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.lantern.data.Dao;
+import org.lantern.data.LanternInstance;
+import org.lantern.data.LanternUser;
 import org.lantern.data.LegacyFriend;
 import org.lantern.data.LegacyFriend.Status;
 import org.lantern.data.LegacyFriends;
@@ -20,9 +25,13 @@ import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.dev.HighRepJobPolicy;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.googlecode.objectify.Objectify;
+import com.googlecode.objectify.ObjectifyService;
 
 public class DatastoreTest {
     
+    private static final String USER = "user@example.com";
+
     private final Logger log = LoggerFactory.getLogger(getClass());
     
     private static final class CustomHighRepJobPolicy implements HighRepJobPolicy {
@@ -60,9 +69,7 @@ public class DatastoreTest {
     public void testEventuallyConsistentGlobalQueryResult() throws Exception {
         ShardedCounterManager.disable();
         final Dao dao = new Dao();
-        final String id = "id-7777";
         final String name = "testuser";
-        dao.updateUser(id, 0L, 0L, 0L, 0L, "US", name, Mode.get);
         
         final LegacyFriend friend1 = new LegacyFriend("test1@test.com");
         final LegacyFriend friend2 = new LegacyFriend("test2@test.com");
@@ -100,4 +107,52 @@ public class DatastoreTest {
         // server must have newer info!
         assertEquals(1, changed3.size());
     }
+
+    @Test
+    public void testSetInstanceUnavailable() {
+        ShardedCounterManager.disable();
+        final Dao dao = new Dao();
+        final Objectify ofy = ObjectifyService.begin();
+        // TRANSITION: a user from before we tracked available instances,
+        // with two of them online.
+        final LanternUser user = new LanternUser(USER);
+        assertFalse(user.isAvailableInstancesTracked());
+        ofy.put(user, instance("a", true), instance("b", true),
+                instance("c", false));
+
+        assertEquals(Arrays.asList("-global.npeers.online.give",
+                                   "-IR.npeers.online.give"),
+                     dao.setInstanceUnavailable(ofy, USER, "resource-a"));
+        LanternUser stored = ofy.get(LanternUser.class, USER);
+        assertTrue(stored.isAvailableInstancesTracked());
+
+        // Going unavailable again changes nothing.
+        assertTrue(dao.setInstanceUnavailable(ofy, USER, "resource-a")
+                   .isEmpty());
+        assertTrue(dao.setInstanceUnavailable(ofy, USER, "resource-c")
+                   .isEmpty());
+
+        final List<String> counters =
+            dao.setInstanceUnavailable(ofy, USER, "resource-b");
+        assertEquals(Arrays.asList("-global.npeers.online.give",
+                                   "-IR.npeers.online.give",
+                                   "-global.nusers.online",
+                                   "-IR.nusers.online"),
+                     counters);
+        stored = ofy.get(LanternUser.class, USER);
+        assertTrue(stored.addAvailableInstance("b"));
+    }
+
+    private static LanternInstance instance(final String id,
+            final boolean available) {
+        final LanternInstance instance = new LanternInstance(id,
+                new com.googlecode.objectify.Key<LanternUser>(
+                    LanternUser.class, USER));
+        instance.setUser(USER);
+        instance.setResource("resource-" + id);
+        instance.setMode(Mode.give);
+        instance.setCurrentCountry("IR");
+        instance.setAvailable(available);
+        return instance;
+    }
 }
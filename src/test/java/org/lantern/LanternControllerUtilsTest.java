@@ -0,0 +1,56 @@
+package org.lantern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Map;
+
+import org.junit.Test;
+
+public class LanternControllerUtilsTest {
+
+    private static final String STANZA =
+        "<presence xmlns=\"jabber:client\" from=\"user@gmail.com/-lan1\">"
+        + "<status>available</status>"
+        + "<properties xmlns=\"http://www.jivesoftware.com/xmlns/xmpp/properties\">"
+        + "<property><name>instanceId</name><value type=\"string\">abc</value></property>"
+        + "<property><name>mode</name><value type=\"string\">give</value></property>"
+        + "<property><name>stats</name>"
+        + "<value type=\"string\">{\"countryCode\":\"IR\"}</value></property>"
+        + "<property><name>mode</name><value type=\"string\">get</value></property>"
+        + "<property><name>empty</name><value type=\"string\"></value></property>"
+        + "<property><name>name</name><value type=\"string\">A &amp; B</value></property>"
+        + "</properties>"
+        + "</presence>";
+
+    @Test
+    public void testGetProperties() throws Exception {
+        Map<String, String> properties =
+                LanternControllerUtils.getProperties(STANZA);
+        assertEquals("abc", properties.get("instanceId"));
+        assertEquals("{\"countryCode\":\"IR\"}", properties.get("stats"));
+        assertEquals("A & B", properties.get("name"));
+        // First value wins.
+        assertEquals("give", properties.get("mode"));
+        assertFalse(properties.containsKey("empty"));
+        assertEquals("", LanternControllerUtils.getProperty(properties,
+                                                            "missing"));
+    }
+
+    @Test
+    public void testIgnoresPropertiesOutsidePresence() throws Exception {
+        Map<String, String> properties = LanternControllerUtils.getProperties(
+                "<message xmlns=\"jabber:client\">"
+                + "<properties xmlns=\"http://www.jivesoftware.com/xmlns/xmpp/properties\">"
+                + "<property><name>mode</name><value>give</value></property>"
+                + "</properties></message>");
+        assertEquals(0, properties.size());
+    }
+
+    @Test(expected=RuntimeException.class)
+    public void testRejectsEntityDeclarations() throws Exception {
+        LanternControllerUtils.getProperties(
+                "<!DOCTYPE presence [<!ENTITY a \"aaaaaaaaaa\">]>"
+                + "<presence xmlns=\"jabber:client\">&a;</presence>");
+    }
+}
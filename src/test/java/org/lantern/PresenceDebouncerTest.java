@@ -0,0 +1,105 @@
+package org.lantern;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+/**
+ * Runs sequences of presences from a single instance through
+ * PresenceDebouncer, remembering each presence it lets through as if it had
+ * been processed.
+ */
+public class PresenceDebouncerTest {
+
+    private static final String USER = "user@example.com";
+
+    private static final String RESOURCE = "lantern-1234";
+
+    private static final String NO_STATS = "{\"countryCode\":\"IR\","
+        + "\"directRequests\":0,\"directBytes\":0,"
+        + "\"totalProxiedRequests\":0,\"totalBytesProxied\":0}";
+
+    private static final String SOME_STATS = "{\"countryCode\":\"IR\","
+        + "\"directRequests\":1,\"directBytes\":100,"
+        + "\"totalProxiedRequests\":0,\"totalBytesProxied\":0}";
+
+    private final LocalServiceTestHelper helper =
+        new LocalServiceTestHelper(new LocalMemcacheServiceTestConfig());
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+    }
+
+    @After
+    public void tearDown() {
+        helper.tearDown();
+    }
+
+    @Test
+    public void testDuplicate() {
+        assertTrue(processed(available("give", NO_STATS)));
+        assertFalse(processed(available("give", NO_STATS)));
+        assertFalse(processed(available("give", NO_STATS)));
+    }
+
+    @Test
+    public void testChanged() {
+        assertTrue(processed(available("give", NO_STATS)));
+        assertTrue(processed(available("get", NO_STATS)));
+        assertFalse(processed(available("get", NO_STATS)));
+    }
+
+    @Test
+    public void testStats() {
+        assertTrue(processed(available("give", SOME_STATS)));
+        // The same deltas again are new traffic.
+        assertTrue(processed(available("give", SOME_STATS)));
+    }
+
+    @Test
+    public void testUnavailableThenAvailable() {
+        assertTrue(processed(available("give", NO_STATS)));
+        assertTrue(processed(null));
+        // A quick reconnect is processed in full.
+        assertTrue(processed(available("give", NO_STATS)));
+        assertFalse(processed(available("give", NO_STATS)));
+    }
+
+    private static Map<String, String> available(final String mode,
+            final String stats) {
+        final Map<String, String> properties = new HashMap<String, String>();
+        properties.put("mode", mode);
+        properties.put("stats", stats);
+        return properties;
+    }
+
+    /**
+     * @param properties of an available presence, or null for an
+     * unavailable one.
+     * @return whether the debouncer lets the presence through.
+     */
+    private static boolean processed(final Map<String, String> properties) {
+        if (properties == null) {
+            PresenceDebouncer.forget(USER, RESOURCE);
+            return true;
+        }
+        final String fingerprint =
+            PresenceDebouncer.fingerprint(RESOURCE, properties);
+        if (PresenceDebouncer.isDuplicate(USER, RESOURCE, fingerprint,
+                properties.get("stats"))) {
+            return false;
+        }
+        PresenceDebouncer.remember(USER, RESOURCE, fingerprint, 60);
+        return true;
+    }
+}
@@ -0,0 +1,130 @@
+package org.lantern;
+
+import java.io.ByteArrayInputStream;
+import java.util.Map;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+
+/**
+ * Compares the per-stanza cost of the ways we have had of reading presence
+ * properties:
+ *
+ *  - a new DocumentBuilderFactory and DOM per stanza, plus one XPath
+ *    evaluation per property (what we used to do),
+ *  - a per-thread DocumentBuilder and compiled XPath cache, and
+ *  - a single streaming pass over the stanza.
+ *
+ * Run it as a plain Java program with the test classpath.
+ */
+public class PresenceParseBenchmark {
+
+    private static final String[] KEYS = { "instanceId", "hostAndPort",
+            "fallbackHostAndPort", "isFallbackProxy", "invitedEmail",
+            "friends", "friend", "mode", "stats", "name", "language" };
+
+    private static final String STANZA = buildStanza();
+
+    private static final int WARMUP = 20000;
+
+    private static final int ITERATIONS = 100000;
+
+    private interface Parser {
+        int parse(String stanza) throws Exception;
+    }
+
+    public static void main(final String[] args) throws Exception {
+        run("new factory per stanza + DOM + XPath", new Parser() {
+            @Override
+            public int parse(String stanza) throws Exception {
+                final DocumentBuilderFactory domFactory =
+                    DocumentBuilderFactory.newInstance();
+                domFactory.setNamespaceAware(true);
+                domFactory.setFeature(
+                        XMLConstants.FEATURE_SECURE_PROCESSING, true);
+                domFactory.setValidating(false);
+                DocumentBuilder builder = domFactory.newDocumentBuilder();
+                Document doc = builder.parse(
+                        new ByteArrayInputStream(stanza.getBytes()));
+                int total = 0;
+                for (String key : KEYS) {
+                    total += LanternControllerUtils.getProperty(doc, key)
+                            .length();
+                }
+                return total;
+            }
+        });
+        run("per-thread builder + DOM + XPath", new Parser() {
+            @Override
+            public int parse(String stanza) throws Exception {
+                Document doc = LanternControllerUtils.buildDoc(stanza);
+                int total = 0;
+                for (String key : KEYS) {
+                    total += LanternControllerUtils.getProperty(doc, key)
+                            .length();
+                }
+                return total;
+            }
+        });
+        run("single streaming pass", new Parser() {
+            @Override
+            public int parse(String stanza) throws Exception {
+                Map<String, String> properties =
+                    LanternControllerUtils.getProperties(stanza);
+                int total = 0;
+                for (String key : KEYS) {
+                    total += LanternControllerUtils.getProperty(properties,
+                                                                key).length();
+                }
+                return total;
+            }
+        });
+    }
+
+    private static void run(final String description, final Parser parser)
+            throws Exception {
+        long sink = 0;
+        for (int i = 0; i < WARMUP; i++) {
+            sink += parser.parse(STANZA);
+        }
+        final long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink += parser.parse(STANZA);
+        }
+        final long elapsed = System.nanoTime() - start;
+        System.out.println(String.format("%-40s %8d ns/stanza (%d)",
+                description, elapsed / ITERATIONS, sink));
+    }
+
+    private static String buildStanza() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("<presence xmlns=\"jabber:client\" ")
+          .append("from=\"user@gmail.com/-lan3C4A1F2B\" ")
+          .append("to=\"lanternctrl@appspot.com\">")
+          .append("<status>available</status>")
+          .append("<properties xmlns=\"http://www.jivesoftware.com/xmlns/xmpp/properties\">");
+        appendProperty(sb, "instanceId", "8a6b5c4d3e2f");
+        appendProperty(sb, "mode", "give");
+        appendProperty(sb, "hostAndPort", "203.0.113.7:22345");
+        appendProperty(sb, "fallbackHostAndPort", "198.51.100.2:443");
+        appendProperty(sb, "isFallbackProxy", "false");
+        appendProperty(sb, "name", "Lantern User");
+        appendProperty(sb, "language", "en");
+        appendProperty(sb, "stats",
+                "{\"countryCode\":\"IR\",\"directRequests\":12,"
+                + "\"directBytes\":34567,\"totalProxiedRequests\":89,"
+                + "\"totalBytesProxied\":1234567}");
+        sb.append("</properties></presence>");
+        return sb.toString();
+    }
+
+    private static void appendProperty(final StringBuilder sb,
+            final String name, final String value) {
+        sb.append("<property><name>").append(name)
+          .append("</name><value type=\"string\">").append(value)
+          .append("</value></property>");
+    }
+}
@@ -0,0 +1,116 @@
+package org.lantern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.taskqueue.dev.QueueStateInfo.TaskStateInfo;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+
+public class PresenceQueueTest {
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalMemcacheServiceTestConfig(),
+            new LocalTaskQueueTestConfig()
+                .setDisableAutoTaskExecution(true));
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+    }
+
+    @After
+    public void tearDown() {
+        helper.tearDown();
+    }
+
+    @Test
+    public void testCoalescing() {
+        final PendingPresence first = presence("r1", true);
+        final PendingPresence second = presence("r1", true);
+        final PendingPresence other = presence("r2", true);
+        PresenceQueue.register(first);
+        PresenceQueue.register(second);
+        PresenceQueue.register(other);
+        assertTrue(PresenceQueue.isSuperseded(first));
+        assertFalse(PresenceQueue.isSuperseded(second));
+        // Other instances of the same user don't supersede each other.
+        assertFalse(PresenceQueue.isSuperseded(other));
+    }
+
+    @Test
+    public void testUnavailableAfterAvailable() {
+        final PendingPresence available = presence("r1", true);
+        final PendingPresence unavailable = presence("r1", false);
+        PresenceQueue.register(available);
+        PresenceQueue.register(unavailable);
+        // Whichever task runs first, only the unavailable presence changes
+        // the state of the instance.
+        assertFalse(PresenceQueue.isSuperseded(unavailable));
+        assertTrue(PresenceQueue.isSuperseded(available));
+
+        // A quick reconnect supersedes the unavailable presence in turn.
+        final PendingPresence again = presence("r1", true);
+        PresenceQueue.register(again);
+        assertTrue(PresenceQueue.isSuperseded(unavailable));
+        assertFalse(PresenceQueue.isSuperseded(again));
+    }
+
+    @Test
+    public void testEviction() {
+        final PendingPresence available = presence("r1", true);
+        final PendingPresence unavailable = presence("r1", false);
+        PresenceQueue.register(available);
+        PresenceQueue.register(unavailable);
+        MemcacheServiceFactory.getMemcacheService().clearAll();
+        // Each task falls back to processing its own presence.
+        assertFalse(PresenceQueue.isSuperseded(available));
+        assertFalse(PresenceQueue.isSuperseded(unavailable));
+    }
+
+    @Test
+    public void testEnqueue() {
+        final PendingPresence available = presence("r1", true);
+        available.setFriendJson("{\"email\":\"friend@example.com\"}");
+        PresenceQueue.enqueue(available);
+        PresenceQueue.enqueue(presence("r1", false));
+        MemcacheServiceFactory.getMemcacheService().clearAll();
+
+        // Both presences are in the queue, whatever memcache lost.
+        final List<TaskStateInfo> tasks = LocalTaskQueueTestConfig
+            .getLocalTaskQueue().getQueueStateInfo()
+            .get("default").getTaskInfo();
+        assertEquals(2, tasks.size());
+        int friendSyncs = 0;
+        for (TaskStateInfo task : tasks) {
+            final PendingPresence pending =
+                PresenceQueue.fromPayload(task.getBodyAsBytes());
+            assertEquals("user@example.com", pending.getUserId());
+            if (pending.getFriendJson() != null) {
+                assertTrue(pending.isAvailable());
+                assertEquals(1, pending.getSequence());
+                friendSyncs++;
+            }
+        }
+        assertEquals(1, friendSyncs);
+    }
+
+    private static PendingPresence presence(final String resource,
+            final boolean available) {
+        final PendingPresence pending = new PendingPresence();
+        pending.setUserId("user@example.com");
+        pending.setFromJid("user@example.com/" + resource);
+        pending.setResource(resource);
+        pending.setAvailable(available);
+        return pending;
+    }
+}
@@ -0,0 +1,295 @@
+package org.lantern;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.io.IOUtils;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.lantern.data.ShardedCounterManager;
+import org.lantern.data.StatsData;
+
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.apphosting.api.ApiProxy;
+
+public class StatsControllerTest {
+
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalMemcacheServiceTestConfig(),
+            new LocalDatastoreServiceTestConfig());
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+        // Should we need to rebuild a snapshot, it has all counters at
+        // zero.
+        ShardedCounterManager.disable();
+    }
+
+    @After
+    public void tearDown() {
+        helper.tearDown();
+    }
+
+    @Test
+    public void testETag() throws Exception {
+        final StatsSnapshot snapshot = publish(System.currentTimeMillis());
+        final Response first = get(new HashMap<String, String>());
+        assertEquals(HttpServletResponse.SC_OK, first.status);
+        assertEquals(snapshot.getETag(), first.headers.get("ETag"));
+        assertArrayEquals(snapshot.getJson(), first.body.toByteArray());
+
+        final Map<String, String> headers = new HashMap<String, String>();
+        headers.put("If-None-Match", snapshot.getETag());
+        final Response second = get(headers);
+        assertEquals(HttpServletResponse.SC_NOT_MODIFIED, second.status);
+        assertEquals(0, second.body.size());
+
+        headers.put("If-None-Match", "\"1\"");
+        assertEquals(HttpServletResponse.SC_OK, get(headers).status);
+    }
+
+    @Test
+    public void testGzip() throws Exception {
+        final StatsSnapshot snapshot = publish(System.currentTimeMillis());
+        final Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Accept-Encoding", "deflate, gzip");
+        final Response gzipped = get(headers);
+        assertEquals("gzip", gzipped.headers.get("Content-Encoding"));
+        assertEquals("Accept-Encoding", gzipped.headers.get("Vary"));
+        assertEquals(snapshot.getGzipETag(), gzipped.headers.get("ETag"));
+        assertEquals(gzipped.body.size(), gzipped.contentLength);
+        assertArrayEquals(snapshot.getJson(), IOUtils.toByteArray(
+                new GZIPInputStream(new ByteArrayInputStream(
+                        gzipped.body.toByteArray()))));
+
+        headers.put("Accept-Encoding", "deflate");
+        final Response plain = get(headers);
+        assertNull(plain.headers.get("Content-Encoding"));
+        assertEquals(snapshot.getETag(), plain.headers.get("ETag"));
+        assertArrayEquals(snapshot.getJson(), plain.body.toByteArray());
+
+        headers.put("Accept-Encoding", "gzip");
+        headers.put("If-None-Match", snapshot.getGzipETag());
+        assertEquals(HttpServletResponse.SC_NOT_MODIFIED, get(headers).status);
+    }
+
+    @Test
+    public void testStaleSnapshotWhileLeased() throws Exception {
+        final StatsSnapshot stale = publish(System.currentTimeMillis()
+                - 60 * 60 * 1000L);
+        assertFalse(stale.isFresh());
+        // Someone else is rebuilding it.
+        MemcacheServiceFactory.getMemcacheService().put(
+                "statsSnapshotLease", System.currentTimeMillis());
+        assertEquals(stale.getETag(),
+                get(new HashMap<String, String>()).headers.get("ETag"));
+        assertEquals(stale.getVersion(), StatsSnapshot.latest().getVersion());
+
+        // Once they're done, the next request gets the lease.
+        MemcacheServiceFactory.getMemcacheService()
+            .delete("statsSnapshotLease");
+        final int rebuilds = StatsSnapshot.getRebuilds();
+        final String etag =
+            get(new HashMap<String, String>()).headers.get("ETag");
+        assertFalse(stale.getETag().equals(etag));
+        assertEquals(rebuilds + 1, StatsSnapshot.getRebuilds());
+
+        // The counters (all disabled here) haven't been persisted since, so
+        // the next one to get the lease finds nothing to rebuild, and no one
+        // looks again for a while.
+        assertEquals(etag,
+                get(new HashMap<String, String>()).headers.get("ETag"));
+        assertEquals("checked", MemcacheServiceFactory.getMemcacheService()
+                     .get("statsSnapshotLease"));
+        assertEquals(etag,
+                get(new HashMap<String, String>()).headers.get("ETag"));
+        assertEquals(rebuilds + 1, StatsSnapshot.getRebuilds());
+    }
+
+    @Test
+    public void testSingleRebuild() throws Exception {
+        final StatsSnapshot stale = publish(System.currentTimeMillis()
+                - 60 * 60 * 1000L);
+        final int rebuilds = StatsSnapshot.getRebuilds();
+        final int requests = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<String> etags =
+            Collections.synchronizedList(new ArrayList<String>());
+        final List<Thread> threads = new ArrayList<Thread>();
+        final ApiProxy.Environment environment =
+            ApiProxy.getCurrentEnvironment();
+        for (int i = 0; i < requests; i++) {
+            final Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    ApiProxy.setEnvironmentForCurrentThread(environment);
+                    try {
+                        start.await();
+                        etags.add(get(new HashMap<String, String>())
+                                  .headers.get("ETag"));
+                    } catch (final Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(requests, etags.size());
+        final Set<String> rebuilt = new HashSet<String>(etags);
+        rebuilt.remove(stale.getETag());
+        // Whoever didn't get the lease got the stale snapshot, unless the
+        // rebuilt one was already out.
+        assertEquals(1, rebuilt.size());
+        assertEquals(rebuilds + 1, StatsSnapshot.getRebuilds());
+    }
+
+    @Test
+    public void testSelection() throws Exception {
+        final StatsSnapshot snapshot = publish(System.currentTimeMillis());
+
+        // Noting where each scope goes doesn't change the document.
+        final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        final JsonGenerator generator = new JsonFactory()
+            .createJsonGenerator(expected, JsonEncoding.UTF8);
+        newData().writeDocument(generator);
+        generator.close();
+        assertEquals(expected.toString("UTF-8"),
+                     new String(snapshot.getJson(), "UTF-8"));
+
+        assertEquals("{\"countries\":{\"IR\":{\"bps\":0,"
+                     + "\"nusers\":{\"online\":34}}}}",
+                     select("IR", null));
+        assertEquals("{\"countries\":{\"CN\":{\"bps\":0,"
+                     + "\"nusers\":{\"online\":0}},\"IR\":{\"bps\":0,"
+                     + "\"nusers\":{\"online\":34}}},\"global\":{\"bps\":0,"
+                     + "\"nusers\":{\"online\":0}}}",
+                     select("ir,global, CN", null));
+        assertEquals("{\"global\":{\"bps\":0,\"nusers\":{\"online\":0}}}",
+                     select("global", null));
+        assertEquals("{\"countries\":{}}", select("XX", null));
+        assertEquals("{\"countries\":{\"IR\":{\"nusers\":{\"online\":34}}}}",
+                     select("IR", "nusers"));
+    }
+
+    private static String select(final String countries,
+            final String metrics) throws IOException {
+        final Map<String, String> parameters = new HashMap<String, String>();
+        parameters.put("country", countries);
+        parameters.put("metric", metrics);
+        return get(new HashMap<String, String>(), parameters).body
+            .toString("UTF-8");
+    }
+
+    private static StatsSnapshot publish(final long version) {
+        return StatsSnapshot.publish(newData(), version);
+    }
+
+    private static StatsData newData() {
+        final StatsData data = new StatsData(new StatsData.Layout(
+                new String[] { "PROXIED_REQUESTS" },
+                new String[] { "bps", "nusers.online" },
+                new String[] { "CN", "IR" }));
+        data.getTotals()[0] = 12;
+        data.getValues(2)[1] = 34;
+        return data;
+    }
+
+    private static final class Response {
+        final Map<String, String> headers = new HashMap<String, String>();
+
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        int status;
+
+        int contentLength = -1;
+    }
+
+    private static Response get(final Map<String, String> headers)
+            throws IOException {
+        return get(headers, new HashMap<String, String>());
+    }
+
+    private static Response get(final Map<String, String> headers,
+            final Map<String, String> parameters) throws IOException {
+        final HttpServletRequest request = (HttpServletRequest)
+            Proxy.newProxyInstance(StatsControllerTest.class.getClassLoader(),
+                new Class<?>[] { HttpServletRequest.class },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(final Object proxy,
+                            final Method method, final Object[] args) {
+                        if (method.getName().equals("getHeader")) {
+                            return headers.get(args[0]);
+                        } else if (method.getName().equals("getParameter")) {
+                            return parameters.get(args[0]);
+                        }
+                        return null;
+                    }
+                });
+        final Response result = new Response();
+        final ServletOutputStream os = new ServletOutputStream() {
+            @Override
+            public void write(final int b) {
+                result.body.write(b);
+            }
+        };
+        final HttpServletResponse response = (HttpServletResponse)
+            Proxy.newProxyInstance(StatsControllerTest.class.getClassLoader(),
+                new Class<?>[] { HttpServletResponse.class },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(final Object proxy,
+                            final Method method, final Object[] args) {
+                        final String name = method.getName();
+                        if (name.equals("setHeader")) {
+                            result.headers.put((String) args[0],
+                                               (String) args[1]);
+                        } else if (name.equals("setStatus")) {
+                            result.status = (Integer) args[0];
+                        } else if (name.equals("setContentLength")) {
+                            result.contentLength = (Integer) args[0];
+                        } else if (name.equals("getOutputStream")) {
+                            return os;
+                        }
+                        return null;
+                    }
+                });
+        new StatsController().doGet(request, response);
+        return result;
+    }
+}
@@ -0,0 +1,176 @@
+package org.lantern.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.StringTokenizer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Compares the text format we used to persist the counter group with the
+ * binary one, for a group of about the size we have in production:
+ *
+ *  - the time to encode the whole group, and to re-encode it after a
+ *    persist cycle has changed a few of its counters,
+ *  - the time to decode it, and
+ *  - the size of what we store in the Datastore and in memcache.
+ *
+ * Run it as a plain Java program with the test classpath.
+ */
+public class CounterGroupEncodingBenchmark {
+
+    private static final String[] COUNTRIES = java.util.Locale
+            .getISOCountries();
+
+    private static final String[] METRICS = { "nusers.ever", "nusers.online",
+            "npeers.online.give", "npeers.online.get", "bps", "bytesEver" };
+
+    // How many counters a typical persist cycle changes.
+    private static final int CHANGED = 50;
+
+    private static final int WARMUP = 200;
+
+    private static final int ITERATIONS = 1000;
+
+    private interface Codec {
+        int run() throws Exception;
+    }
+
+    public static void main(final String[] args) throws Exception {
+        Logger.getLogger(CounterGroup.class.getName()).setLevel(Level.WARNING);
+        final CounterGroup group = buildGroup();
+        final Random random = new Random(0);
+        final String[] names = group.getAllCounters().keySet()
+                .toArray(new String[0]);
+        System.out.println(group.getNumCounters() + " counters");
+
+        final String text = encodeText(group);
+        group.prepareForPersistence();
+        final byte[] binary = group.getEncodedCounters().getBytes();
+        System.out.println(String.format("%-40s %8d bytes", "text",
+                text.getBytes("UTF-8").length));
+        System.out.println(String.format("%-40s %8d bytes", "binary",
+                binary.length));
+        System.out.println(String.format("%-40s %8d bytes",
+                "memcache copy of group (binary)", serializedSize(group)));
+
+        run("text encode", new Codec() {
+            @Override
+            public int run() {
+                return encodeText(group).length();
+            }
+        });
+        run("binary encode, everything changed", new Codec() {
+            @Override
+            public int run() {
+                for (String name : names) {
+                    group.getCounter(name).setEncoded(null);
+                }
+                group.prepareForPersistence();
+                return group.getEncodedCounters().getBytes().length;
+            }
+        });
+        run("binary encode, " + CHANGED + " changed", new Codec() {
+            @Override
+            public int run() {
+                for (int i = 0; i < CHANGED; i++) {
+                    group.getCounter(names[random.nextInt(names.length)])
+                         .increment(1);
+                }
+                group.prepareForPersistence();
+                return group.getEncodedCounters().getBytes().length;
+            }
+        });
+        run("text decode", new Codec() {
+            @Override
+            public int run() {
+                return decodeText(text).size();
+            }
+        });
+        run("binary decode", new Codec() {
+            @Override
+            public int run() {
+                group.restore();
+                return group.getNumCounters();
+            }
+        });
+    }
+
+    private static void run(final String description, final Codec codec)
+            throws Exception {
+        long sink = 0;
+        for (int i = 0; i < WARMUP; i++) {
+            sink += codec.run();
+        }
+        final long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink += codec.run();
+        }
+        final long elapsed = System.nanoTime() - start;
+        System.out.println(String.format("%-40s %8d us/group (%d)",
+                description, elapsed / ITERATIONS / 1000, sink));
+    }
+
+    private static CounterGroup buildGroup() {
+        final Random random = new Random(0);
+        final CounterGroup group = new CounterGroup();
+        for (String country : COUNTRIES) {
+            for (String metric : METRICS) {
+                final DatastoreCounter counter = new DatastoreCounter(
+                        country + "." + metric, metric.startsWith("npeers"));
+                counter.setCount(random.nextInt(100000));
+                counter.setShardCount(1 + random.nextInt(4));
+                group.addCounter(counter);
+            }
+        }
+        return group;
+    }
+
+    /**
+     * What CounterGroup.prepareForPersistence used to do.
+     */
+    private static String encodeText(final CounterGroup group) {
+        StringBuilder sb = new StringBuilder(50000);
+        for (DatastoreCounter counter : group.getAllCounters().values()) {
+            sb.append(counter.getCounterName());
+            sb.append(":");
+            sb.append(counter.isTimed() ? 1 : 0);
+            sb.append(":");
+            sb.append(counter.getCount());
+            sb.append(":");
+            sb.append(counter.getShardCount());
+            sb.append(",");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * What CounterGroup.restore used to do.
+     */
+    private static Map<String, DatastoreCounter> decodeText(final String s) {
+        StringTokenizer st = new StringTokenizer(s, ",");
+        HashMap<String, DatastoreCounter> c
+            = new HashMap<String, DatastoreCounter>(2006);
+        while (st.hasMoreTokens()) {
+            StringTokenizer sti = new StringTokenizer(st.nextToken(), ":");
+            String name = sti.nextToken();
+            boolean isTimed = sti.nextToken().equals("1");
+            DatastoreCounter dc = new DatastoreCounter(name, isTimed);
+            dc.setCount(Long.parseLong(sti.nextToken()));
+            dc.setShardCount(Integer.parseInt(sti.nextToken()));
+            c.put(name, dc);
+        }
+        return c;
+    }
+
+    private static int serializedSize(final Object o) throws Exception {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(o);
+        out.close();
+        return bytes.size();
+    }
+}
@@ -0,0 +1,139 @@
+package org.lantern.data;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.google.appengine.api.datastore.Blob;
+
+public class CounterGroupTest {
+
+    @Test
+    public void testRoundTrip() {
+        final CounterGroup group = new CounterGroup();
+        final DatastoreCounter timed = new DatastoreCounter("global.bps", true);
+        timed.setShardCount(9);
+        timed.resizeShards(7);
+        timed.recordInterval(6000, 3600);
+        timed.recordInterval(-1, 3660);
+        group.addCounter(timed);
+        final DatastoreCounter untimed =
+            new DatastoreCounter("IR.nusers.ever", false);
+        untimed.setCount(-12345678901L);
+        untimed.setShardCount(1);
+        group.addCounter(untimed);
+
+        group.prepareForPersistence();
+        group.restore();
+
+        assertEquals(2, group.getNumCounters());
+        final DatastoreCounter bps = group.getCounter("global.bps");
+        assertTrue(bps.isTimed());
+        assertEquals(6000 / 60, bps.getCount());
+        assertEquals(6000 / 3600, bps.getWindow().getPerSecond(
+                SlidingWindowCounter.ONE_HOUR, 3660));
+        assertEquals(7, bps.getShardCount());
+        assertEquals(9, bps.getRetiredShards());
+        final DatastoreCounter ever = group.getCounter("IR.nusers.ever");
+        assertFalse(ever.isTimed());
+        assertEquals(-12345678901L, ever.getCount());
+        assertEquals(1, ever.getShardCount());
+    }
+
+    @Test
+    public void testOnlyChangedCountersAreReencoded() {
+        final CounterGroup group = new CounterGroup();
+        group.addCounter(new DatastoreCounter("a", false));
+        group.addCounter(new DatastoreCounter("b", false));
+        group.prepareForPersistence();
+        group.restore();
+
+        final byte[] a = group.getCounter("a").getEncoded();
+        group.getCounter("b").increment(300);
+        assertNull(group.getCounter("b").getEncoded());
+        group.prepareForPersistence();
+        assertSame(a, group.getCounter("a").getEncoded());
+
+        group.restore();
+        assertEquals(300, group.getCounter("b").getCount());
+    }
+
+    @Test
+    public void testUnchangedRecordsSurviveRestore() {
+        final CounterGroup group = new CounterGroup();
+        group.addCounter(new DatastoreCounter("global.nusers.ever", false));
+        group.addCounter(new DatastoreCounter("IR.nusers.ever", false));
+        group.prepareForPersistence();
+        final byte[] record =
+            group.getCounter("global.nusers.ever").getEncoded();
+        final byte[] persisted = group.getEncodedCounters().getBytes();
+
+        group.restore();
+        final DatastoreCounter restored =
+            group.getCounter("global.nusers.ever");
+        assertArrayEquals(record, restored.getEncoded());
+        group.getCounter("IR.nusers.ever").increment(5);
+        group.prepareForPersistence();
+        assertSame(restored.getEncoded(),
+                   group.getCounter("global.nusers.ever").getEncoded());
+        assertNotNull(group.getCounter("IR.nusers.ever").getEncoded());
+
+        // Restoring again, with nothing changed, writes the same bytes.
+        group.restore();
+        group.prepareForPersistence();
+        final byte[] again = group.getEncodedCounters().getBytes();
+        group.restore();
+        group.prepareForPersistence();
+        assertArrayEquals(again, group.getEncodedCounters().getBytes());
+        assertEquals(persisted.length, again.length);
+    }
+
+    @Test
+    public void testVersion1() {
+        // Version 1 had no retired shards.
+        final byte[] v1 = {
+            1,
+            // Segments.
+            3, 6, 'g', 'l', 'o', 'b', 'a', 'l', 3, 'b', 'p', 's',
+            2, 'I', 'R',
+            // Counters.
+            2,
+            // global.bps: timed, a count of -3, 4 shards.
+            2, 0, 1, 1, 5, 4,
+            // IR.bps: untimed, a count of 300, 1 shard.
+            2, 2, 1, 0, (byte) 0xD8, 0x04, 1 };
+        final CounterGroup group = new CounterGroup();
+        group.setEncodedCounters(new Blob(v1));
+        group.restore();
+
+        assertEquals(2, group.getNumCounters());
+        DatastoreCounter global = group.getCounter("global.bps");
+        assertTrue(global.isTimed());
+        assertEquals(-3, global.getCount());
+        assertEquals(4, global.getShardCount());
+        assertEquals(0, global.getRetiredShards());
+        // We don't reuse records of another version...
+        assertNull(global.getEncoded());
+        assertEquals(300, group.getCounter("IR.bps").getCount());
+
+        // ...but write them anew in the current one.
+        group.prepareForPersistence();
+        assertEquals(2, group.getEncodedCounters().getBytes()[0]);
+        group.restore();
+        global = group.getCounter("global.bps");
+        assertTrue(global.isTimed());
+        assertEquals(-3, global.getCount());
+        assertEquals(4, global.getShardCount());
+        assertNotNull(global.getEncoded());
+        final DatastoreCounter ir = group.getCounter("IR.bps");
+        assertFalse(ir.isTimed());
+        assertEquals(300, ir.getCount());
+        assertEquals(1, ir.getShardCount());
+    }
+}
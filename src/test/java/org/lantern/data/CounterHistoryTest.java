@@ -0,0 +1,42 @@
+package org.lantern.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class CounterHistoryTest {
+
+    @Test
+    public void testRollups() {
+        final CounterHistory history = new CounterHistory("global.bps", 100);
+        final long[] samples =
+            CounterHistory.newColumn(CounterHistory.MINUTES_PER_HOUR);
+        samples[0] = 10;
+        samples[1] = 20;
+        // Minute 2 is missing and doesn't count.
+        samples[3] = 30;
+        history.setMinutes(2 * CounterHistory.MINUTES_PER_HOUR, samples);
+        assertEquals(10, history.getMinutes()[120]);
+        assertEquals(20, history.getMinutes()[121]);
+        assertEquals(CounterHistory.MISSING, history.getMinutes()[122]);
+        assertEquals(20, history.getHours()[2]);
+        assertEquals(CounterHistory.MISSING, history.getHours()[3]);
+        assertEquals(20, history.getDayValue());
+
+        // Samples we get later for the same hour are merged in.
+        final long[] late = new long[] { CounterHistory.MISSING, 40 };
+        history.setMinutes(2 * CounterHistory.MINUTES_PER_HOUR + 1, late);
+        assertEquals(40, history.getMinutes()[122]);
+        assertEquals(25, history.getHours()[2]);
+
+        history.setMinutes(5 * CounterHistory.MINUTES_PER_HOUR,
+                           new long[] { 75 });
+        assertEquals(75, history.getHours()[5]);
+        assertEquals(50, history.getDayValue());
+
+        history.dropMinutes();
+        assertNull(history.getMinutes());
+        assertEquals(50, history.getDayValue());
+    }
+}
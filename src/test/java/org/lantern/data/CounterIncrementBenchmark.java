@@ -0,0 +1,114 @@
+package org.lantern.data;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Compares the cost of picking the memcache keys to increment a counter
+ * through, which ShardedCounterManager.incrementAll does for every counter
+ * it increments:
+ *
+ *  - a new Random per call, and building the keys from the counter's name
+ *    (what we used to do), and
+ *  - a per-thread Random, and the keys precomputed in CounterMetadata.
+ *
+ * It reports time and bytes allocated per increment.  Run it as a plain Java
+ * program with the test classpath, on a HotSpot JVM.
+ */
+public class CounterIncrementBenchmark {
+
+    private static final String[] METRICS = { "nusers.online",
+            "npeers.online.give", "bytesEver" };
+
+    private static final int WARMUP = 1000000;
+
+    private static final int ITERATIONS = 5000000;
+
+    private static final ThreadLocal<Random> RANDOM =
+        new ThreadLocal<Random>() {
+            @Override
+            protected Random initialValue() {
+                return new Random();
+            }
+        };
+
+    private interface Picker {
+        int pick(String name);
+    }
+
+    public static void main(final String[] args) {
+        final CounterGroup group = new CounterGroup();
+        final String[] countries = Locale.getISOCountries();
+        final String[] names = new String[countries.length * METRICS.length];
+        int n = 0;
+        for (String country : countries) {
+            for (String metric : METRICS) {
+                final DatastoreCounter counter =
+                    new DatastoreCounter(country + "." + metric);
+                counter.setShardCount(4);
+                group.addCounter(counter);
+                names[n++] = counter.getCounterName();
+            }
+        }
+        final CounterMetadata metadata = new CounterMetadata(0L, group);
+
+        run("new Random + string keys", names, new Picker() {
+            @Override
+            public int pick(final String name) {
+                final Random generator = new Random();
+                final int shardCount = metadata.getCounter(name)
+                        .getShardCount();
+                final String shardKey = "count" + name + "-"
+                        + generator.nextInt(shardCount);
+                int picked = shardKey.length();
+                if (generator.nextInt(shardCount
+                        * ShardedCounterManager.SHARD_UPDATE_RATIO) == 0) {
+                    picked += ("updates" + name).length();
+                }
+                return picked;
+            }
+        });
+        run("per-thread Random + precomputed keys", names, new Picker() {
+            @Override
+            public int pick(final String name) {
+                final Random generator = RANDOM.get();
+                ShardedCounterManager.partitionOf(name);
+                final CounterMetadata.Counter counter =
+                    metadata.getCounter(name);
+                final int shardCount = counter.getShardCount();
+                int picked = counter.getShardKey(
+                        generator.nextInt(shardCount)).length();
+                if (generator.nextInt(shardCount
+                        * ShardedCounterManager.SHARD_UPDATE_RATIO) == 0) {
+                    picked += counter.getUpdatesKey().length();
+                }
+                return picked;
+            }
+        });
+    }
+
+    private static void run(final String description, final String[] names,
+            final Picker picker) {
+        long sink = 0;
+        for (int i = 0; i < WARMUP; i++) {
+            sink += picker.pick(names[i % names.length]);
+        }
+        final long allocatedBefore = allocatedBytes();
+        final long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink += picker.pick(names[i % names.length]);
+        }
+        final long elapsed = System.nanoTime() - start;
+        final long allocated = allocatedBytes() - allocatedBefore;
+        System.out.println(String.format("%-40s %6d ns %6d bytes (%d)",
+                description, elapsed / ITERATIONS, allocated / ITERATIONS,
+                sink));
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean)
+                ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
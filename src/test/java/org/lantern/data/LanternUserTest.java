@@ -0,0 +1,49 @@
+package org.lantern.data;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+public class LanternUserTest {
+
+    private static final String USER = "user@example.com";
+
+    private final LocalServiceTestHelper helper =
+        new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+    }
+
+    @After
+    public void tearDown() {
+        helper.tearDown();
+    }
+
+    @Test
+    public void testAvailableInstances() {
+        final LanternUser user = new LanternUser(USER);
+        user.initAvailableInstanceIds(Collections.<String>emptyList());
+        // The first instance brings the user online...
+        assertTrue(user.addAvailableInstance("a"));
+        // ...and more of them, or the same one again, don't.
+        assertFalse(user.addAvailableInstance("b"));
+        assertFalse(user.addAvailableInstance("a"));
+
+        assertFalse(user.removeAvailableInstance("a"));
+        // Only the last one to go takes the user offline.
+        assertTrue(user.removeAvailableInstance("b"));
+        // Going unavailable twice doesn't count twice.
+        assertFalse(user.removeAvailableInstance("b"));
+        assertTrue(user.addAvailableInstance("a"));
+    }
+}
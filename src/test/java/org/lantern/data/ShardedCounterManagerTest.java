@@ -0,0 +1,54 @@
+package org.lantern.data;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class ShardedCounterManagerTest {
+
+    // What one shard takes in a 60 second cycle.
+    private static final long FULL =
+        ShardedCounterManager.MAX_UPDATES_PER_SHARD_PER_SECOND * 60L;
+
+    @Test
+    public void testTargetShardCount() {
+        // Grow as soon as the shards we have can't keep up.
+        assertEquals(1, ShardedCounterManager.targetShardCount(1, FULL, 60));
+        assertEquals(2,
+                ShardedCounterManager.targetShardCount(1, FULL + 1, 60));
+        assertEquals(5,
+                ShardedCounterManager.targetShardCount(2, 5 * FULL, 60));
+
+        // Don't shrink while the rest would be more than half loaded...
+        assertEquals(4,
+                ShardedCounterManager.targetShardCount(4, 3 * FULL, 60));
+        assertEquals(4, ShardedCounterManager.targetShardCount(4,
+                3 * FULL / 2 + 1, 60));
+        assertEquals(3, ShardedCounterManager.targetShardCount(4,
+                3 * FULL / 2, 60));
+
+        // ...and shed at most half of the shards at once.
+        assertEquals(4, ShardedCounterManager.targetShardCount(8, 0, 60));
+        assertEquals(1, ShardedCounterManager.targetShardCount(2, 0, 60));
+        assertEquals(1, ShardedCounterManager.targetShardCount(1, 0, 60));
+    }
+
+    @Test
+    public void testPartitionOf() {
+        assertEquals("global",
+                ShardedCounterManager.partitionOf("global.nusers.ever"));
+        assertEquals("I", ShardedCounterManager.partitionOf("IR.bps"));
+        assertEquals("other",
+                ShardedCounterManager.partitionOf("globalish.bps"));
+        assertEquals("other", ShardedCounterManager.partitionOf(".bps"));
+        assertEquals("other", ShardedCounterManager.partitionOf("IRN.bps"));
+
+        // Totals belong to no country.
+        for (String total : new String[] { "PROXIED_REQUESTS", "DIRECT_BYTES",
+                "DIRECT_REQUESTS", "CENSORED_USERS", "UNCENSORED_USERS",
+                "TOTAL_USERS" }) {
+            assertEquals(total, "global",
+                         ShardedCounterManager.partitionOf(total));
+        }
+    }
+}
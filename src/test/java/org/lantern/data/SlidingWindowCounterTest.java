@@ -0,0 +1,111 @@
+package org.lantern.data;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class SlidingWindowCounterTest {
+
+    private static final long MINUTE = 60;
+
+    @Test
+    public void testRates() {
+        final SlidingWindowCounter counter = new SlidingWindowCounter();
+        final long start = 1000000 * MINUTE;
+        // 600 bytes a minute for an hour, then 6000 for five minutes.
+        for (int i = 0; i < 60; i++) {
+            counter.increment(600, start + i * MINUTE);
+        }
+        for (int i = 60; i < 65; i++) {
+            counter.increment(6000, start + i * MINUTE);
+        }
+        final long now = start + 65 * MINUTE + 30;
+        assertEquals(100, counter.getPerSecond(SlidingWindowCounter.ONE_MINUTE,
+                                               now));
+        assertEquals(100, counter.getPerSecond(
+                SlidingWindowCounter.FIVE_MINUTES, now));
+        assertEquals((55 * 600 + 5 * 6000) / 3600, counter.getPerSecond(
+                SlidingWindowCounter.ONE_HOUR, now));
+
+        // Skipped intervals count as nothing.
+        counter.increment(0, start + 70 * MINUTE);
+        assertEquals(0, counter.getPerSecond(SlidingWindowCounter.FIVE_MINUTES,
+                                             start + 70 * MINUTE));
+        assertEquals((50 * 600 + 5 * 6000) / 3600, counter.getPerSecond(
+                SlidingWindowCounter.ONE_HOUR, start + 70 * MINUTE));
+    }
+
+    @Test
+    public void testNewestFirst() {
+        final SlidingWindowCounter counter = new SlidingWindowCounter();
+        for (int i = 0; i < 100; i++) {
+            counter.increment(i, i * MINUTE);
+        }
+        final SlidingWindowCounter copy = new SlidingWindowCounter(
+                counter.getNewest(), counter.getNewestFirst());
+        assertEquals(counter.getPerSecond(SlidingWindowCounter.ONE_HOUR,
+                                          99 * MINUTE),
+                     copy.getPerSecond(SlidingWindowCounter.ONE_HOUR,
+                                       99 * MINUTE));
+        assertEquals(SlidingWindowCounter.BUCKETS,
+                     counter.getNewestFirst().length);
+    }
+
+    @Test
+    public void testLateCycle() {
+        final SlidingWindowCounter counter = new SlidingWindowCounter();
+        final long start = 1000000 * MINUTE;
+        for (int i = 0; i < 10; i++) {
+            counter.spread(600, start + i * MINUTE);
+        }
+        // Two cycles are skipped, and the next one drains three minutes'
+        // worth.
+        counter.spread(1800, start + 12 * MINUTE);
+        assertEquals(10, counter.getPerSecond(SlidingWindowCounter.ONE_MINUTE,
+                                              start + 12 * MINUTE));
+        assertEquals(10, counter.getPerSecond(
+                SlidingWindowCounter.FIVE_MINUTES, start + 12 * MINUTE));
+
+        // Uneven counts add up.
+        counter.spread(-301, start + 14 * MINUTE);
+        final long[] newestFirst = counter.getNewestFirst();
+        assertEquals(-151, newestFirst[0]);
+        assertEquals(-150, newestFirst[1]);
+        assertEquals(600, newestFirst[2]);
+
+        // After more than an hour, only the last hour's share is left.
+        counter.spread(60 * 600 * 2, start + 134 * MINUTE);
+        assertEquals(10, counter.getPerSecond(SlidingWindowCounter.ONE_HOUR,
+                                              start + 134 * MINUTE));
+    }
+
+    @Test
+    public void testTwoCyclesInOneInterval() {
+        final SlidingWindowCounter counter = new SlidingWindowCounter();
+        final long start = 1000000 * MINUTE;
+        for (int i = 0; i < 5; i++) {
+            counter.spread(600, start + i * MINUTE);
+        }
+        // A cycle runs early, so the next interval gets two of them, each
+        // with half a minute's worth.
+        counter.spread(300, start + 5 * MINUTE + 10);
+        counter.spread(300, start + 5 * MINUTE + 40);
+        assertEquals(10, counter.getPerSecond(SlidingWindowCounter.ONE_MINUTE,
+                                              start + 5 * MINUTE + 40));
+        assertEquals(10, counter.getPerSecond(SlidingWindowCounter.ONE_MINUTE,
+                                              start + 6 * MINUTE));
+        assertEquals(10, counter.getPerSecond(
+                SlidingWindowCounter.FIVE_MINUTES, start + 6 * MINUTE));
+    }
+
+    @Test
+    public void testLateCycleOfCounter() {
+        final DatastoreCounter counter =
+            new DatastoreCounter("global.bps", true);
+        final long start = 1000000 * MINUTE;
+        counter.recordInterval(600, start);
+        counter.recordInterval(600, start + MINUTE);
+        counter.recordInterval(1200, start + 3 * MINUTE);
+        assertEquals(10, counter.getCount());
+    }
+}
@@ -0,0 +1,164 @@
+package org.lantern.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.ObjectMapper;
+
+/**
+ * Compares the cost of writing the stats document as UTF-8 JSON, given the
+ * value of each counter:
+ *
+ *  - building it as nested maps by splitting each counter's dotted name,
+ *    serializing that to a String and encoding the String (what Dao.getStats
+ *    and StatsController used to do), and
+ *  - filling in a StatsData and streaming it through a JsonGenerator into a
+ *    reused buffer (what Dao.getStatsData and StatsSnapshot do).
+ *
+ * Counter values come from a map in both cases, standing in for
+ * ShardedCounterManager.  It reports time and bytes allocated per document.
+ * Run it as a plain Java program with the test classpath, on a HotSpot JVM.
+ */
+public class StatsDocumentBenchmark {
+
+    private static final String[] TOTALS = { "PROXIED_REQUESTS",
+            "DIRECT_BYTES", "DIRECT_REQUESTS", "CENSORED_USERS",
+            "UNCENSORED_USERS" };
+
+    private static final String[] METRICS = { "bps", "bps5m", "bps1h",
+            "bytesEver", "nusers.online", "nusers.ever", "npeers.online.give",
+            "npeers.online.get", "npeers.ever.give", "npeers.ever.get" };
+
+    private static final int WARMUP = 2000;
+
+    private static final int ITERATIONS = 5000;
+
+    private interface Writer {
+        byte[] write() throws IOException;
+    }
+
+    public static void main(final String[] args) throws IOException {
+        final String[] countries = Locale.getISOCountries();
+        final Map<String, Long> counts = new HashMap<String, Long>();
+        long count = 0;
+        for (String total : TOTALS) {
+            counts.put(total, count++);
+        }
+        final String[] scopes = new String[countries.length + 1];
+        scopes[0] = Dao.GLOBAL;
+        System.arraycopy(countries, 0, scopes, 1, countries.length);
+        for (String scope : scopes) {
+            for (String metric : METRICS) {
+                counts.put(scope + "." + metric, count++ * 1000);
+            }
+        }
+
+        final ObjectMapper mapper = new ObjectMapper();
+        run("nested maps + String", new Writer() {
+            @Override
+            public byte[] write() throws IOException {
+                final Map<String, Object> data =
+                    new HashMap<String, Object>();
+                for (String total : TOTALS) {
+                    add(data, total, counts);
+                }
+                for (String metric : METRICS) {
+                    add(data, Dao.GLOBAL + "." + metric, counts);
+                }
+                final Map<String, Object> countriesData =
+                    new HashMap<String, Object>();
+                for (String country : countries) {
+                    for (String metric : METRICS) {
+                        add(countriesData, country + "." + metric, counts);
+                    }
+                }
+                data.put(Dao.COUNTRIES, countriesData);
+                return mapper.writeValueAsString(data).getBytes("UTF-8");
+            }
+        });
+
+        final StatsData.Layout layout =
+            new StatsData.Layout(TOTALS, METRICS, countries);
+        final String[][] counterNames =
+            new String[layout.getScopeCount()][layout.getMetricCount()];
+        for (int scope = 0; scope < counterNames.length; scope++) {
+            for (int i = 0; i < layout.getMetricCount(); i++) {
+                counterNames[scope][i] =
+                    layout.getScope(scope) + "." + layout.getMetric(i);
+            }
+        }
+        final JsonFactory factory = new JsonFactory();
+        final ByteArrayOutputStream buffer =
+            new ByteArrayOutputStream(64 * 1024);
+        run("StatsData + JsonGenerator", new Writer() {
+            @Override
+            public byte[] write() throws IOException {
+                final StatsData data = new StatsData(layout);
+                final long[] totals = data.getTotals();
+                for (int i = 0; i < totals.length; i++) {
+                    totals[i] = counts.get(layout.getTotal(i));
+                }
+                for (int scope = 0; scope < counterNames.length; scope++) {
+                    final long[] values = data.getValues(scope);
+                    for (int i = 0; i < values.length; i++) {
+                        values[i] = counts.get(counterNames[scope][i]);
+                    }
+                }
+                buffer.reset();
+                final JsonGenerator generator = factory.createJsonGenerator(
+                        buffer, JsonEncoding.UTF8);
+                data.writeDocument(generator);
+                generator.close();
+                return buffer.toByteArray();
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void add(final Map<String, Object> data, final String key,
+            final Map<String, Long> counts) {
+        Map<String, Object> container = data;
+        final String[] parts = key.split("\\.");
+        for (int i = 0; i < parts.length - 1; i++) {
+            Map<String, Object> child =
+                (Map<String, Object>) container.get(parts[i]);
+            if (child == null) {
+                child = new HashMap<String, Object>();
+                container.put(parts[i], child);
+            }
+            container = child;
+        }
+        container.put(parts[parts.length - 1], counts.get(key));
+    }
+
+    private static void run(final String description, final Writer writer)
+            throws IOException {
+        long sink = 0;
+        for (int i = 0; i < WARMUP; i++) {
+            sink += writer.write().length;
+        }
+        final long allocatedBefore = allocatedBytes();
+        final long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink += writer.write().length;
+        }
+        final long elapsed = System.nanoTime() - start;
+        final long allocated = allocatedBytes() - allocatedBefore;
+        System.out.println(String.format("%-30s %8d ns %8d bytes (%d)",
+                description, elapsed / ITERATIONS, allocated / ITERATIONS,
+                sink / (WARMUP + ITERATIONS)));
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean)
+                ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,141 @@
+package org.lantern.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+public class UserActivityBufferTest {
+
+    private static final long PERIOD =
+        UserActivityBuffer.FLUSH_MINUTES * 60 * 1000L;
+
+    // The start of some flush period.
+    private static final long START = 1000 * PERIOD;
+
+    private final LocalServiceTestHelper helper =
+        new LocalServiceTestHelper(new LocalMemcacheServiceTestConfig());
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+    }
+
+    @After
+    public void tearDown() {
+        helper.tearDown();
+    }
+
+    @Test
+    public void testDrainLeavesCurrentPeriod() {
+        UserActivityBuffer.recordAccess("a@example.com", START + 1);
+        assertTrue(drain(START + 2).isEmpty());
+        final Map<String, UserActivityBuffer.Activity> drained =
+            drain(START + PERIOD);
+        assertEquals(1, drained.size());
+        assertEquals(START + 1,
+                drained.get("a@example.com").getLastAccessed().getTime());
+        assertTrue(drain(START + PERIOD).isEmpty());
+    }
+
+    @Test
+    public void testActiveUserIsDrainedEveryPeriod() {
+        UserActivityBuffer.recordAccess("a@example.com", START + 1);
+        UserActivityBuffer.recordAccess("a@example.com", START + 2);
+        assertEquals(1, drain(START + PERIOD).size());
+        // Still active after being drained.
+        UserActivityBuffer.recordAccess("a@example.com", START + PERIOD + 1);
+        final Map<String, UserActivityBuffer.Activity> drained =
+            drain(START + 2 * PERIOD);
+        assertEquals(START + PERIOD + 1,
+                drained.get("a@example.com").getLastAccessed().getTime());
+    }
+
+    @Test
+    public void testMissedDrains() {
+        // Active throughout, while no flush runs for a few periods.
+        for (int i = 0; i < UserActivityBuffer.DRAIN_PERIODS; i++) {
+            UserActivityBuffer.recordAccess("a@example.com",
+                                            START + i * PERIOD + 1);
+        }
+        UserActivityBuffer.recordAccess("b@example.com", START + 1);
+        final long last = START + UserActivityBuffer.DRAIN_PERIODS * PERIOD;
+        final Map<String, UserActivityBuffer.Activity> drained =
+            drain(last);
+        assertEquals(2, drained.size());
+        assertEquals(last - PERIOD + 1,
+                drained.get("a@example.com").getLastAccessed().getTime());
+        assertEquals(START + 1,
+                drained.get("b@example.com").getLastAccessed().getTime());
+    }
+
+    @Test
+    public void testStatsAreDrainedOnce() {
+        UserActivityBuffer.recordStats("a@example.com", 1, 10, 2, 20);
+        UserActivityBuffer.recordStats("a@example.com", 1, 10, 0, 0);
+        final long later = System.currentTimeMillis() + PERIOD;
+        UserActivityBuffer.Activity activity =
+            drain(later).get("a@example.com");
+        assertEquals(2, activity.getDirectRequests());
+        assertEquals(20, activity.getDirectBytes());
+        assertEquals(2, activity.getRequestsProxied());
+        assertEquals(20, activity.getBytesProxied());
+
+        // Stats that come in after the drain are left for the user's next
+        // registration.
+        UserActivityBuffer.recordStats("a@example.com", 0, 5, 0, 0);
+        UserActivityBuffer.recordAccess("a@example.com", later + 1);
+        activity = drain(later + PERIOD)
+            .get("a@example.com");
+        assertEquals(0, activity.getDirectRequests());
+        assertEquals(5, activity.getDirectBytes());
+    }
+
+    @Test
+    public void testRestore() {
+        UserActivityBuffer.recordStats("a@example.com", 1, 10, 2, 20);
+        final long later = System.currentTimeMillis() + PERIOD;
+        final List<UserActivityBuffer.Bucket> buckets =
+            UserActivityBuffer.buckets(later);
+        assertEquals(1, buckets.size());
+        final Map<String, UserActivityBuffer.Activity> drained =
+            UserActivityBuffer.drain(buckets.get(0).getEmails());
+        assertEquals(10, drained.get("a@example.com").getDirectBytes());
+
+        // Say writing them failed, and more came in meanwhile.
+        UserActivityBuffer.recordStats("a@example.com", 0, 5, 0, 0);
+        UserActivityBuffer.restore(drained);
+        final UserActivityBuffer.Activity activity =
+            drain(later).get("a@example.com");
+        assertEquals(1, activity.getDirectRequests());
+        assertEquals(15, activity.getDirectBytes());
+        assertEquals(2, activity.getRequestsProxied());
+        assertEquals(20, activity.getBytesProxied());
+        assertTrue(UserActivityBuffer.buckets(later).isEmpty());
+    }
+
+    /**
+     * Drain every bucket a flush at the given time would, as a flush that
+     * writes everything does.
+     */
+    private static Map<String, UserActivityBuffer.Activity> drain(
+            final long now) {
+        final Map<String, UserActivityBuffer.Activity> result =
+            new HashMap<String, UserActivityBuffer.Activity>();
+        for (UserActivityBuffer.Bucket bucket
+                 : UserActivityBuffer.buckets(now)) {
+            result.putAll(UserActivityBuffer.drain(bucket.getEmails()));
+            UserActivityBuffer.clear(bucket);
+        }
+        return result;
+    }
+}